@@ -0,0 +1,40 @@
+package com.github.aistech.billing;
+
+import com.github.aistech.billing.utils.BillingHelper;
+
+/**
+ * Realistic getPurchases and getSkuDetails payloads, as returned by Google Play.
+ */
+public final class BenchmarkPayloads {
+
+    public static final String PURCHASE = purchase(100);
+
+    public static final String PRODUCT = product(100);
+
+    private BenchmarkPayloads() {
+    }
+
+    public static String sku(int i) {
+        return "diamond_pack_" + i;
+    }
+
+    public static String token(int i) {
+        return "opaque-token-abcdefghijklmnopqrstuvwxyz.AO-J1Oy" + (1000000000L + i);
+    }
+
+    public static String purchase(int i) {
+        return "{\"orderId\":\"GPA.1234-5678-9012-" + (10000 + i) + "\"," +
+                "\"packageName\":\"com.github.aistech.billing.example\",\"productId\":\"" + sku(i) + "\"," +
+                "\"purchaseTime\":" + (1476912345678L + i) + ",\"purchaseState\":0," +
+                "\"developerPayload\":\"user:42\\/session\"," +
+                "\"purchaseToken\":\"" + token(i) + "\"," +
+                "\"autoRenewing\":false,\"acknowledged\":true}";
+    }
+
+    public static String product(int i) {
+        return "{\"productId\":\"" + sku(i) + "\",\"type\":\"" + BillingHelper.ITEM_TYPE_INAPP + "\"," +
+                "\"price\":\"R$3.19\",\"price_amount_micros\":3190000,\"price_currency_code\":\"BRL\"," +
+                "\"title\":\"Diamante (Mapa da Sa\\u00fade)\",\"description\":\"Diamante\"," +
+                "\"skuDetailsToken\":\"AEuhp4Kd\"}";
+    }
+}
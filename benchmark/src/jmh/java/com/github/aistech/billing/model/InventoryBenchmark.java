@@ -0,0 +1,93 @@
+package com.github.aistech.billing.model;
+
+import com.github.aistech.billing.BenchmarkPayloads;
+import com.github.aistech.billing.utils.BillingHelper;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building an inventory of size purchases and as many SKU details, and looking them up.
+ * Lookups go through the SKUs in turn, so they don't all hit the same entry.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class InventoryBenchmark {
+
+    @Param({"10", "1000", "100000"})
+    public int size;
+
+    private BillingPurchase[] purchases;
+    private BillingProduct[] products;
+    private String[] skus;
+    private String[] tokens;
+    private BillingInventory inventory;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setUp() throws JSONException {
+        purchases = new BillingPurchase[size];
+        products = new BillingProduct[size];
+        skus = new String[size];
+        tokens = new String[size];
+        for (int i = 0; i < size; i++) {
+            purchases[i] = new BillingPurchase(BillingHelper.ITEM_TYPE_INAPP, BenchmarkPayloads.purchase(i), "sig");
+            products[i] = new BillingProduct(BillingHelper.ITEM_TYPE_INAPP, BenchmarkPayloads.product(i));
+            skus[i] = BenchmarkPayloads.sku(i);
+            tokens[i] = BenchmarkPayloads.token(i);
+        }
+        inventory = build();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public BillingInventory build() {
+        BillingInventory.Builder builder = new BillingInventory.Builder();
+        for (BillingPurchase purchase : purchases) {
+            builder.addPurchase(purchase);
+        }
+        for (BillingProduct product : products) {
+            builder.addBillingProduct(product);
+        }
+        return builder.build();
+    }
+
+    @Benchmark
+    public BillingPurchase getPurchase() {
+        return inventory.getPurchase(skus[nextIndex()]);
+    }
+
+    @Benchmark
+    public BillingPurchase getPurchaseByToken() {
+        return inventory.getPurchaseByToken(tokens[nextIndex()]);
+    }
+
+    @Benchmark
+    public BillingProduct getBillingProducts() {
+        return inventory.getBillingProducts(skus[nextIndex()]);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public List<String> getAllOwnedBillingProduct() {
+        return inventory.getAllOwnedBillingProduct(BillingHelper.ITEM_TYPE_INAPP);
+    }
+
+    private int nextIndex() {
+        int i = next;
+        next = i + 1 == size ? 0 : i + 1;
+        return i;
+    }
+}
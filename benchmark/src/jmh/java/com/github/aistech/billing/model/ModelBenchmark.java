@@ -0,0 +1,75 @@
+package com.github.aistech.billing.model;
+
+import com.github.aistech.billing.BenchmarkPayloads;
+import com.github.aistech.billing.utils.BillingHelper;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Construction of the models from a getPurchases or getSkuDetails payload, eager and lazy.
+ * The lazy variants read only what the inventory indexes. The JSONObject variants read the
+ * same fields the way the models did before the scanner, as a baseline.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ModelBenchmark {
+
+    private String purchase = BenchmarkPayloads.PURCHASE;
+    private String product = BenchmarkPayloads.PRODUCT;
+
+    @Benchmark
+    public BillingPurchase purchase() throws JSONException {
+        return new BillingPurchase(BillingHelper.ITEM_TYPE_INAPP, purchase, "sig");
+    }
+
+    @Benchmark
+    public String purchaseLazy() throws JSONException {
+        return new BillingPurchase(BillingHelper.ITEM_TYPE_INAPP, purchase, "sig", true).getToken();
+    }
+
+    @Benchmark
+    public BillingProduct product() throws JSONException {
+        return new BillingProduct(BillingHelper.ITEM_TYPE_INAPP, product);
+    }
+
+    @Benchmark
+    public String productLazy() throws JSONException {
+        return new BillingProduct(BillingHelper.ITEM_TYPE_INAPP, product, true).getSku();
+    }
+
+    @Benchmark
+    public void purchaseJsonObject(Blackhole bh) throws JSONException {
+        JSONObject o = new JSONObject(purchase);
+        bh.consume(o.optString("orderId"));
+        bh.consume(o.optString("packageName"));
+        bh.consume(o.optString("productId"));
+        bh.consume(o.optLong("purchaseTime"));
+        bh.consume(o.optInt("purchaseState"));
+        bh.consume(o.optString("developerPayload"));
+        bh.consume(o.optString("token", o.optString("purchaseToken")));
+        bh.consume(o.optBoolean("autoRenewing"));
+    }
+
+    @Benchmark
+    public void productJsonObject(Blackhole bh) throws JSONException {
+        JSONObject o = new JSONObject(product);
+        bh.consume(o.optString("productId"));
+        bh.consume(o.optString("type"));
+        bh.consume(o.optString("price"));
+        bh.consume(o.optLong("price_amount_micros"));
+        bh.consume(o.optString("price_currency_code"));
+        bh.consume(o.optString("title"));
+        bh.consume(o.optString("description"));
+    }
+}
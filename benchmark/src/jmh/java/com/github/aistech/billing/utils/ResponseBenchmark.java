@@ -0,0 +1,69 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.exceptions.BillingException;
+import com.github.aistech.billing.model.BillingResult;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Describing response codes and creating the results and exceptions reporting them.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class ResponseBenchmark {
+
+    // Fields, so the JIT can't fold the calls into constants
+    private int known = BillingHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED;
+    private int unknown = 42;
+    private int cancelled = BillingHelper.BILLING_RESPONSE_RESULT_USER_CANCELED;
+    private int error = BillingHelper.BILLING_RESPONSE_RESULT_ERROR;
+    private String sku = "diamond_pack_100";
+
+    @Benchmark
+    public String getResponseDesc() {
+        return BillingHelper.getResponseDesc(known);
+    }
+
+    @Benchmark
+    public String getResponseDescUnknown() {
+        return BillingHelper.getResponseDesc(unknown);
+    }
+
+    @Benchmark
+    public BillingResult resultOf() {
+        return BillingResult.of(known);
+    }
+
+    @Benchmark
+    public BillingResult newResult() {
+        return new BillingResult(known, "Successful consume of sku ", sku);
+    }
+
+    @Benchmark
+    public String newResultMessage() {
+        return new BillingResult(known, "Successful consume of sku ", sku).getMessage();
+    }
+
+    @Benchmark
+    public BillingException exceptionExpected() {
+        return BillingException.of(BillingResult.of(cancelled));
+    }
+
+    @Benchmark
+    public BillingException exceptionExpectedWithMessage() {
+        return BillingException.of(new BillingResult(cancelled, "Purchase cancelled of sku ", sku));
+    }
+
+    @Benchmark
+    public BillingException exceptionError() {
+        return BillingException.of(BillingResult.of(error));
+    }
+}
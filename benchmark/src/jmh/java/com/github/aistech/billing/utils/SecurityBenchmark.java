@@ -0,0 +1,73 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.BenchmarkPayloads;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Purchase signature verification with a 2048-bit RSA key, like Google Play's, through
+ * {@link Security} and through a {@link PurchaseVerifier} remembering verified purchases.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SecurityBenchmark {
+
+    private String base64PublicKey;
+    private PublicKey publicKey;
+    private String signature;
+    private PurchaseVerifier cachingVerifier;
+    private String purchase = BenchmarkPayloads.PURCHASE;
+
+    @Setup
+    public void setUp() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        KeyPair keyPair = generator.generateKeyPair();
+        Signature signer = Signature.getInstance("SHA1withRSA");
+        signer.initSign(keyPair.getPrivate());
+        signer.update(purchase.getBytes(Charset.forName("UTF-8")));
+
+        base64PublicKey = java.util.Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded());
+        publicKey = Security.generatePublicKey(base64PublicKey);
+        signature = java.util.Base64.getEncoder().encodeToString(signer.sign());
+        cachingVerifier = new PurchaseVerifier(base64PublicKey, new VerifiedPurchaseCache());
+        if (!Security.verifyPurchase(base64PublicKey, purchase, signature)) {
+            throw new IllegalStateException("The purchase signature doesn't verify.");
+        }
+    }
+
+    @Benchmark
+    public boolean verifyPurchase() {
+        return Security.verifyPurchase(base64PublicKey, purchase, signature);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return Security.verify(publicKey, purchase, signature);
+    }
+
+    @Benchmark
+    public boolean verifyPurchaseCached() {
+        return cachingVerifier.verifyPurchase(purchase, signature);
+    }
+
+    @Benchmark
+    public PublicKey generatePublicKey() {
+        return Security.generatePublicKey(base64PublicKey);
+    }
+}
@@ -0,0 +1,150 @@
+package com.github.aistech.billing.utils;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.RemoteException;
+
+import com.android.vending.billing.IInAppBillingService;
+import com.github.aistech.billing.BenchmarkPayloads;
+import com.github.aistech.billing.model.BillingInventory;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link BillingHelper#queryBillingProduct}: splitting the SKUs in packs of 20, sending the
+ * packs, at most inFlight at a time, and parsing the details into the inventory, against a
+ * fake billing service answering each getSkuDetails call after latencyMicros.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class SkuDetailsBatchingBenchmark {
+
+    @Param({"20", "200", "1000"})
+    public int skus;
+
+    @Param({"1", "4"})
+    public int inFlight;
+
+    @Param({"0", "500"})
+    public int latencyMicros;
+
+    private BillingHelper helper;
+    private List<String> skuList;
+
+    @Setup
+    public void setUp() {
+        BillingExecutor executor = new BillingExecutor(1, "BillingBenchmark", new BillingExecutor.CallbackDispatcher() {
+            @Override
+            public void dispatch(Runnable callback) {
+                callback.run();
+            }
+        });
+        helper = new BillingHelper(new Context(), null, executor);
+        helper.setMaxSkuDetailsInFlight(inFlight);
+        helper.mService = new FakeBillingService(skus, TimeUnit.MICROSECONDS.toNanos(latencyMicros));
+        skuList = new ArrayList<String>(skus);
+        for (int i = 0; i < skus; i++) {
+            skuList.add(BenchmarkPayloads.sku(i));
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws BillingHelper.BillingAsyncInProgressException {
+        helper.dispose();
+    }
+
+    @Benchmark
+    public BillingInventory queryBillingProduct() throws RemoteException, JSONException {
+        BillingInventory.Builder inv = new BillingInventory.Builder();
+        int response = helper.queryBillingProduct(BillingHelper.ITEM_TYPE_INAPP, inv, skuList);
+        if (response != BillingHelper.BILLING_RESPONSE_RESULT_OK) {
+            throw new IllegalStateException(BillingHelper.getResponseDesc(response));
+        }
+        return inv.build();
+    }
+
+    /**
+     * Answers getSkuDetails with the details of the requested SKUs, prepared up front.
+     */
+    private static final class FakeBillingService implements IInAppBillingService {
+
+        private final Map<String, String> details = new HashMap<String, String>();
+        private final long latencyNanos;
+
+        FakeBillingService(int skus, long latencyNanos) {
+            for (int i = 0; i < skus; i++) {
+                details.put(BenchmarkPayloads.sku(i), BenchmarkPayloads.product(i));
+            }
+            this.latencyNanos = latencyNanos;
+        }
+
+        @Override
+        public Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle) {
+            if (latencyNanos > 0) LockSupport.parkNanos(latencyNanos);
+            ArrayList<String> list = new ArrayList<String>();
+            for (String sku : skusBundle.getStringArrayList(BillingHelper.GET_SKU_DETAILS_ITEM_LIST)) {
+                String json = details.get(sku);
+                if (json != null) list.add(json);
+            }
+            Bundle response = new Bundle();
+            response.putInt(BillingHelper.RESPONSE_CODE, BillingHelper.BILLING_RESPONSE_RESULT_OK);
+            response.putStringArrayList(BillingHelper.RESPONSE_GET_SKU_DETAILS_LIST, list);
+            return response;
+        }
+
+        @Override
+        public int isBillingSupported(int apiVersion, String packageName, String type) {
+            return BillingHelper.BILLING_RESPONSE_RESULT_OK;
+        }
+
+        @Override
+        public Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type,
+                                   String developerPayload) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int consumePurchase(int apiVersion, String packageName, String purchaseToken) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int stub(int apiVersion, String packageName, String type) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Bundle getBuyIntentToReplaceSkus(int apiVersion, String packageName, List<String> oldSkus,
+                                                String newSku, String type, String developerPayload) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public IBinder asBinder() {
+            return null;
+        }
+    }
+}
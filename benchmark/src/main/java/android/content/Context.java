@@ -0,0 +1,51 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * JVM stand-in for the Android Context, with the methods the billing library calls.
+ * Nothing is bound, registered or stored: the benchmarks give the helper its service directly.
+ */
+public class Context {
+
+    public static final int BIND_AUTO_CREATE = 0x0001;
+
+    private final String packageName;
+
+    public Context() {
+        this("com.github.aistech.billing.benchmark");
+    }
+
+    public Context(String packageName) {
+        this.packageName = packageName;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return packageName;
+    }
+
+    public PackageManager getPackageManager() {
+        return null;
+    }
+
+    public boolean bindService(Intent service, ServiceConnection conn, int flags) {
+        return false;
+    }
+
+    public void unbindService(ServiceConnection conn) {
+    }
+
+    public Intent registerReceiver(BroadcastReceiver receiver, IntentFilter filter) {
+        return null;
+    }
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
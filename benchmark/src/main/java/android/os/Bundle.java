@@ -0,0 +1,86 @@
+package android.os;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * JVM stand-in for the Android Bundle: a map, without parceling.
+ */
+public class Bundle {
+
+    private final Map<String, Object> map = new HashMap<String, Object>();
+
+    public Object get(String key) {
+        return map.get(key);
+    }
+
+    public boolean containsKey(String key) {
+        return map.containsKey(key);
+    }
+
+    public Set<String> keySet() {
+        return map.keySet();
+    }
+
+    public int size() {
+        return map.size();
+    }
+
+    public boolean isEmpty() {
+        return map.isEmpty();
+    }
+
+    public void putInt(String key, int value) {
+        map.put(key, value);
+    }
+
+    public int getInt(String key) {
+        Object value = map.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+
+    public void putLong(String key, long value) {
+        map.put(key, value);
+    }
+
+    public long getLong(String key) {
+        Object value = map.get(key);
+        return value instanceof Long ? (Long) value : 0L;
+    }
+
+    public void putString(String key, String value) {
+        map.put(key, value);
+    }
+
+    public String getString(String key) {
+        Object value = map.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public void putStringArrayList(String key, ArrayList<String> value) {
+        map.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public ArrayList<String> getStringArrayList(String key) {
+        Object value = map.get(key);
+        return value instanceof ArrayList ? (ArrayList<String>) value : null;
+    }
+
+    public void putParcelable(String key, Parcelable value) {
+        map.put(key, value);
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelable(String key) {
+        Object value = map.get(key);
+        return value instanceof Parcelable ? (T) value : null;
+    }
+
+    @Override
+    public String toString() {
+        return "Bundle" + map;
+    }
+}
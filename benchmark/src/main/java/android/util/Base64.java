@@ -0,0 +1,33 @@
+package android.util;
+
+/**
+ * JVM stand-in for the Android Base64, backed by {@link java.util.Base64}. Only the default
+ * flags are supported; like Android's decoder, line breaks are accepted.
+ */
+public final class Base64 {
+
+    public static final int DEFAULT = 0;
+    public static final int NO_WRAP = 2;
+
+    private Base64() {
+    }
+
+    /**
+     * @throws IllegalArgumentException if str is not valid Base64, as on Android.
+     */
+    public static byte[] decode(String str, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(str);
+    }
+
+    public static byte[] decode(byte[] input, int flags) {
+        return java.util.Base64.getMimeDecoder().decode(input);
+    }
+
+    public static String encodeToString(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encodeToString(input);
+    }
+
+    public static byte[] encode(byte[] input, int flags) {
+        return java.util.Base64.getEncoder().encode(input);
+    }
+}
@@ -0,0 +1,41 @@
+package com.android.vending.billing;
+
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.IInterface;
+import android.os.RemoteException;
+
+import java.util.List;
+
+/**
+ * The interface generated from billing/src/main/aidl/.../IInAppBillingService.aidl, which a
+ * plain Java module can't compile. Benchmarks implement it with a fake service.
+ */
+public interface IInAppBillingService extends IInterface {
+
+    int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException;
+
+    Bundle getSkuDetails(int apiVersion, String packageName, String type, Bundle skusBundle)
+            throws RemoteException;
+
+    Bundle getBuyIntent(int apiVersion, String packageName, String sku, String type, String developerPayload)
+            throws RemoteException;
+
+    Bundle getPurchases(int apiVersion, String packageName, String type, String continuationToken)
+            throws RemoteException;
+
+    int consumePurchase(int apiVersion, String packageName, String purchaseToken) throws RemoteException;
+
+    int stub(int apiVersion, String packageName, String type) throws RemoteException;
+
+    Bundle getBuyIntentToReplaceSkus(int apiVersion, String packageName, List<String> oldSkus, String newSku,
+                                     String type, String developerPayload) throws RemoteException;
+
+    abstract class Stub implements IInAppBillingService {
+        public static IInAppBillingService asInterface(IBinder obj) {
+            if (obj == null) return null;
+            IInterface local = obj.queryLocalInterface("com.android.vending.billing.IInAppBillingService");
+            return local instanceof IInAppBillingService ? (IInAppBillingService) local : null;
+        }
+    }
+}
@@ -46,6 +46,9 @@ public class MainExample extends Activity implements BillingHelper.QueryBillingI
         BillingSingleton.getInstance().init(this, base64EncodedPublicKey);
         BillingSingleton.getInstance().enableDebugging(TAG);
 
+        // Optional: show the last known inventory right away, then the fresh one.
+        BillingSingleton.getInstance().enableInventoryCache(this);
+
         // Below: Code should be in some Activity
         BillingSingleton.getInstance().registerInventoryListener(this);
         BillingSingleton.getInstance().startSetup(new BillingHelper.OnIabSetupFinishedListener() {
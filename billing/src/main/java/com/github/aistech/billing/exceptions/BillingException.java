@@ -4,12 +4,17 @@ import android.annotation.TargetApi;
 import android.os.Build;
 
 import com.github.aistech.billing.model.BillingResult;
+import com.github.aistech.billing.utils.BillingHelper;
 
 /**
  * Exception thrown when something went wrong with in-app billing.
  * An BillingException has an associated BillingResult (an error).
  * To get the BillingResult result that caused this exception to be thrown,
  * call {@link #getResult()}.
+ * <p>
+ * Use {@link #of(BillingResult)} to get the exception for a result: expected failures, such
+ * as a cancelled purchase or an item that is already owned, get an exception without a stack
+ * trace, which is much cheaper to create.
  * Created by jonathan on 19/10/16.
  */
 public class BillingException extends Exception {
@@ -41,11 +46,12 @@ public class BillingException extends Exception {
     }
 
     public BillingException(int response, String message) {
-        this(new BillingException(response, message));
+        this(new BillingResult(response, message), null);
     }
 
     public BillingException(BillingResult r, Exception cause) {
-        super(r.getMessage(), cause);
+        // The message is the result's, only formatted if it is read.
+        super(null, cause);
         result = r;
     }
 
@@ -59,4 +65,57 @@ public class BillingException extends Exception {
     public BillingResult getResult() {
         return result;
     }
+
+    @Override
+    public String getMessage() {
+        return result != null ? result.getMessage() : super.getMessage();
+    }
+
+    /**
+     * Returns whether a response code is an expected outcome of a billing operation rather
+     * than an error: the user cancelling, an item that is unavailable, already owned or not
+     * owned, or a purchase whose signature doesn't verify.
+     */
+    public static boolean isExpected(int response) {
+        switch (response) {
+            case BillingHelper.BILLING_RESPONSE_RESULT_USER_CANCELED:
+            case BillingHelper.BILLING_RESPONSE_RESULT_ITEM_UNAVAILABLE:
+            case BillingHelper.BILLING_RESPONSE_RESULT_ITEM_ALREADY_OWNED:
+            case BillingHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED:
+            case BillingHelper.IABHELPER_VERIFICATION_FAILED:
+            case BillingHelper.IABHELPER_USER_CANCELLED:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns a new exception signaling the given result. For {@link #isExpected expected}
+     * codes the exception has no stack trace.
+     */
+    public static BillingException of(BillingResult result) {
+        if (!isExpected(result.getResponseCode())) return new BillingException(result);
+        return new Expected(result);
+    }
+
+    /**
+     * Exception for an expected result, which skips capturing the stack trace.
+     */
+    private static final class Expected extends BillingException {
+
+        Expected(BillingResult result) {
+            super(result);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+
+        @Override
+        public String toString() {
+            return BillingException.class.getName() + ": " + getLocalizedMessage();
+        }
+    }
 }
@@ -0,0 +1,49 @@
+package com.github.aistech.billing.metrics;
+
+/**
+ * Receives the timing of every call the billing helper makes to the in-app billing service,
+ * and of the signature verification and JSON parsing of each purchase and SKU detail.
+ * <p>
+ * Set one with {@link com.github.aistech.billing.utils.BillingHelper#setMetrics}; use
+ * {@link DefaultBillingMetrics} for latency histograms and counters. Implementations are
+ * called from the helper's worker threads, concurrently, on the path of every query: they
+ * must be thread-safe and return quickly. Without metrics, nothing is timed.
+ */
+public interface BillingMetrics {
+
+    /**
+     * The operations measured.
+     */
+    enum Operation {
+        /** IInAppBillingService.isBillingSupported, during setup. */
+        IS_BILLING_SUPPORTED,
+        /** IInAppBillingService.getPurchases, once per page of purchases. */
+        GET_PURCHASES,
+        /** IInAppBillingService.getSkuDetails, once per pack of at most 20 SKUs. */
+        GET_SKU_DETAILS,
+        /** IInAppBillingService.getBuyIntent. */
+        GET_BUY_INTENT,
+        /** IInAppBillingService.getBuyIntentToReplaceSkus. */
+        GET_BUY_INTENT_TO_REPLACE_SKUS,
+        /** IInAppBillingService.consumePurchase. */
+        CONSUME_PURCHASE,
+        /** The signature verification of one purchase. */
+        VERIFY_SIGNATURE,
+        /** The JSON parsing of one purchase or SKU detail. */
+        PARSE_JSON
+    }
+
+    /**
+     * Called once an operation finished.
+     *
+     * @param operation    The operation.
+     * @param responseCode The response code of the operation: the billing response for service
+     *                     calls, BillingHelper.IABHELPER_REMOTE_EXCEPTION if the call failed,
+     *                     IABHELPER_VERIFICATION_FAILED for a signature that doesn't verify and
+     *                     IABHELPER_BAD_RESPONSE for JSON that doesn't parse.
+     * @param elapsedNanos The duration of the operation, in nanoseconds.
+     * @param itemCount    The number of items the call returned (purchases of a page, SKU
+     *                     details of a pack), or 0 for the other operations.
+     */
+    void onOperation(Operation operation, int responseCode, long elapsedNanos, int itemCount);
+}
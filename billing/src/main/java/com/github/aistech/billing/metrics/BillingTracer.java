@@ -0,0 +1,39 @@
+package com.github.aistech.billing.metrics;
+
+/**
+ * Receives the spans of the billing helper's operations: one for the operation itself
+ * (setup, inventory query, purchase flow, consumption...) and one per step within it, such as
+ * binding to the service, each getPurchases page, each 20-SKU getSkuDetails pack, signature
+ * verification, or the dispatch of the listener through the main thread's Handler.
+ * <p>
+ * Set one with {@link com.github.aistech.billing.utils.BillingHelper#setTracer}; use a
+ * {@link TraceRecorder} to look at the spans in chrome://tracing. A span may be started on one
+ * thread and ended on another, and spans are started concurrently from the helper's worker
+ * threads: implementations must be thread-safe. Without a tracer, no span is created.
+ */
+public interface BillingTracer {
+
+    /**
+     * Starts a span.
+     *
+     * @param name   The name of the operation or step, e.g. "getPurchases".
+     * @param parent The span of the enclosing operation, or null for a root span.
+     * @return the new span, to be ended exactly once.
+     */
+    Span startSpan(String name, Span parent);
+
+    /**
+     * A timed operation or step.
+     */
+    interface Span {
+        /**
+         * Attaches a value to the span, e.g. the item type or the number of SKUs of a pack.
+         */
+        void setTag(String key, Object value);
+
+        /**
+         * Ends the span.
+         */
+        void end();
+    }
+}
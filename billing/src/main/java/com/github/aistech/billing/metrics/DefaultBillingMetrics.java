@@ -0,0 +1,146 @@
+package com.github.aistech.billing.metrics;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Default {@link BillingMetrics}: per operation, a {@link LatencyHistogram} of its durations,
+ * the number of times each response code was returned, and the number of items returned.
+ * <p>
+ * Recording takes no lock and doesn't allocate; everything is preallocated when the metrics
+ * are created. {@link #snapshot()} copies the current figures, e.g. to report the p50 and p99
+ * of a storefront load:
+ * <pre>
+ * DefaultBillingMetrics metrics = new DefaultBillingMetrics();
+ * helper.setMetrics(metrics);
+ * ...
+ * OperationStats stats = metrics.snapshot().get(BillingMetrics.Operation.GET_SKU_DETAILS);
+ * long p99 = stats.getLatency().getPercentileNanos(99);
+ * </pre>
+ * This class is thread-safe.
+ */
+public class DefaultBillingMetrics implements BillingMetrics {
+
+    // Response codes are counted at code - FIRST_CODE; others, in OTHER_CODES
+    private static final int FIRST_CODE = -1011;
+    private static final int LAST_CODE = 8;
+    private static final int OTHER_CODES = LAST_CODE - FIRST_CODE + 1;
+
+    private final OperationRecorder[] recorders;
+
+    public DefaultBillingMetrics() {
+        Operation[] operations = Operation.values();
+        recorders = new OperationRecorder[operations.length];
+        for (int i = 0; i < operations.length; i++) {
+            recorders[i] = new OperationRecorder();
+        }
+    }
+
+    @Override
+    public void onOperation(Operation operation, int responseCode, long elapsedNanos, int itemCount) {
+        OperationRecorder recorder = recorders[operation.ordinal()];
+        recorder.latency.record(elapsedNanos);
+        int index = responseCode >= FIRST_CODE && responseCode <= LAST_CODE ? responseCode - FIRST_CODE : OTHER_CODES;
+        recorder.responseCodes.incrementAndGet(index);
+        if (itemCount > 0) recorder.items.addAndGet(itemCount);
+    }
+
+    /**
+     * Returns a copy of the figures of every operation that was recorded at least once.
+     */
+    public Map<Operation, OperationStats> snapshot() {
+        Map<Operation, OperationStats> stats = new EnumMap<Operation, OperationStats>(Operation.class);
+        for (Operation operation : Operation.values()) {
+            OperationStats s = snapshot(operation);
+            if (s.getCalls() > 0) stats.put(operation, s);
+        }
+        return Collections.unmodifiableMap(stats);
+    }
+
+    /**
+     * Returns a copy of the figures of an operation.
+     */
+    public OperationStats snapshot(Operation operation) {
+        OperationRecorder recorder = recorders[operation.ordinal()];
+        Map<Integer, Long> codes = new LinkedHashMap<Integer, Long>();
+        for (int i = 0; i < OTHER_CODES; i++) {
+            long count = recorder.responseCodes.get(i);
+            if (count > 0) codes.put(FIRST_CODE + i, count);
+        }
+        return new OperationStats(operation, recorder.latency.snapshot(), codes,
+                recorder.responseCodes.get(OTHER_CODES), recorder.items.get());
+    }
+
+    private static final class OperationRecorder {
+        final LatencyHistogram latency = new LatencyHistogram();
+        final AtomicLongArray responseCodes = new AtomicLongArray(OTHER_CODES + 1);
+        final AtomicLong items = new AtomicLong();
+    }
+
+    /**
+     * Immutable figures of one operation.
+     */
+    public static final class OperationStats {
+
+        private final Operation operation;
+        private final LatencyHistogram.Snapshot latency;
+        private final Map<Integer, Long> responseCodes;
+        private final long otherResponseCodes;
+        private final long items;
+
+        OperationStats(Operation operation, LatencyHistogram.Snapshot latency, Map<Integer, Long> responseCodes,
+                       long otherResponseCodes, long items) {
+            this.operation = operation;
+            this.latency = latency;
+            this.responseCodes = Collections.unmodifiableMap(responseCodes);
+            this.otherResponseCodes = otherResponseCodes;
+            this.items = items;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * Returns the number of times the operation ran; for getPurchases and getSkuDetails,
+         * the number of pages or packs queried.
+         */
+        public long getCalls() {
+            return latency.getCount();
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency;
+        }
+
+        /**
+         * Returns how many times each known response code was returned, by code.
+         */
+        public Map<Integer, Long> getResponseCodes() {
+            return responseCodes;
+        }
+
+        /**
+         * Returns how many times a response code unknown to the billing library was returned.
+         */
+        public long getOtherResponseCodes() {
+            return otherResponseCodes;
+        }
+
+        /**
+         * Returns the total number of items returned by the operation.
+         */
+        public long getItems() {
+            return items;
+        }
+
+        public String toString() {
+            return operation + ": " + latency + ", items=" + items + ", responses=" + responseCodes
+                    + (otherResponseCodes > 0 ? ", other responses=" + otherResponseCodes : "");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.aistech.billing.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of durations, in nanoseconds, with a bounded relative error.
+ * <p>
+ * As in an HDR histogram, values are counted in buckets whose width grows with the value:
+ * each power of two is split in 16 linear sub-buckets, so a value is known to within 1/16
+ * (6.25%) whatever its magnitude. Recording is a few atomic increments and takes no lock;
+ * the bucket array has a fixed size, so recording never allocates. Values from 2^40 ns
+ * (about 18 minutes) up are counted in the last bucket.
+ * <p>
+ * This class is thread-safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a duration. Negative values are recorded as 0.
+     */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        buckets.incrementAndGet(bucketOf(nanos));
+        total.addAndGet(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns a copy of the histogram. Values recorded while it is taken may or may not be in it.
+     */
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, total.get(), max.get());
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) return BUCKETS - 1;
+        int shift = exponent - SUB_BUCKET_BITS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    // Returns the highest value counted in a bucket.
+    static long highestValueOf(int bucket) {
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        long top = SUB_BUCKETS + (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((top + 1) << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static final class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long total;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long total, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.total = total;
+            this.max = max;
+        }
+
+        /**
+         * Returns the number of values recorded.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the largest value recorded, in nanoseconds, or 0 if none was.
+         */
+        public long getMaxNanos() {
+            return max;
+        }
+
+        /**
+         * Returns the mean of the values recorded, in nanoseconds, or 0 if none was.
+         */
+        public long getMeanNanos() {
+            return count == 0 ? 0 : total / count;
+        }
+
+        /**
+         * Returns the value below which the given percentage of the recorded values fall,
+         * in nanoseconds, or 0 if none was recorded. The result is the upper bound of the
+         * bucket holding that value, so it is over by at most 6.25%, and never above the maximum.
+         *
+         * @param percentile From 0 to 100, e.g. 50 for the median or 99.
+         */
+        public long getPercentileNanos(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100.");
+            }
+            if (count == 0) return 0;
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                // The last bucket has no upper bound.
+                if (seen >= rank) return i == counts.length - 1 ? max : Math.min(highestValueOf(i), max);
+            }
+            return max;
+        }
+
+        public String toString() {
+            return "count=" + count + ", mean=" + getMeanNanos() / 1000 + "us, p50="
+                    + getPercentileNanos(50) / 1000 + "us, p99=" + getPercentileNanos(99) / 1000
+                    + "us, max=" + max / 1000 + "us";
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.github.aistech.billing.metrics;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BillingTracer} that records the ended spans in memory and exports them in the Chrome
+ * trace-event format, to be opened in chrome://tracing or https://ui.perfetto.dev:
+ * <pre>
+ * TraceRecorder recorder = new TraceRecorder();
+ * helper.setTracer(recorder);
+ * ...
+ * Writer out = new FileWriter(new File(context.getExternalFilesDir(null), "billing-trace.json"));
+ * recorder.writeChromeTrace(out);
+ * out.close();
+ * </pre>
+ * A span that starts and ends on the same thread becomes a complete event on that thread's
+ * row. One that ends on another thread, such as work waiting in a queue, becomes a pair of
+ * async begin/end events sharing its id, each with the thread it happened on, since it
+ * doesn't nest within the rows of either thread. The id of the span, the id of its parent
+ * and its tags are in the args. Once the recorder holds its capacity of
+ * spans, further ones are dropped and counted.
+ * <p>
+ * This class is thread-safe.
+ */
+public class TraceRecorder implements BillingTracer {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final long originNanos = System.nanoTime();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private final ConcurrentLinkedQueue<RecordedSpan> spans = new ConcurrentLinkedQueue<RecordedSpan>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Creates a recorder keeping up to {@link #DEFAULT_CAPACITY} spans.
+     */
+    public TraceRecorder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The maximum number of spans kept.
+     */
+    public TraceRecorder(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be at least 1.");
+        this.capacity = capacity;
+    }
+
+    @Override
+    public Span startSpan(String name, Span parent) {
+        long parentId = parent instanceof RecordedSpan ? ((RecordedSpan) parent).id : 0;
+        return new RecordedSpan(nextId.getAndIncrement(), parentId, name);
+    }
+
+    /**
+     * Returns the number of spans recorded.
+     */
+    public int getSpanCount() {
+        return Math.min(size.get(), capacity);
+    }
+
+    /**
+     * Returns the number of spans dropped because the recorder was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes the recorded spans as a Chrome trace-event JSON object.
+     */
+    public void writeChromeTrace(Writer out) throws IOException {
+        List<RecordedSpan> snapshot = new ArrayList<RecordedSpan>(spans);
+        Map<Long, String> threads = new HashMap<Long, String>();
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        for (RecordedSpan span : snapshot) {
+            if (!first) out.write(',');
+            first = false;
+            threads.put(span.threadId, span.threadName);
+            if (span.endThreadId == span.threadId) {
+                writeEvent(out, span, "X", span.threadId, span.startNanos);
+                out.write(",\"dur\":");
+                writeMicros(out, span.endNanos - span.startNanos);
+                writeArgs(out, span);
+            } else {
+                threads.put(span.endThreadId, span.endThreadName);
+                writeEvent(out, span, "b", span.threadId, span.startNanos);
+                writeArgs(out, span);
+                out.write(',');
+                writeEvent(out, span, "e", span.endThreadId, span.endNanos);
+                out.write('}');
+            }
+        }
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            if (!first) out.write(',');
+            first = false;
+            out.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            out.write(Long.toString(thread.getKey()));
+            out.write(",\"args\":{\"name\":");
+            writeString(out, thread.getValue());
+            out.write("}}");
+        }
+        out.write("\n]}");
+        out.flush();
+    }
+
+    /**
+     * Returns the recorded spans as a Chrome trace-event JSON object.
+     */
+    public String toChromeTrace() {
+        StringWriter out = new StringWriter();
+        try {
+            writeChromeTrace(out);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Drops the recorded spans.
+     */
+    public void clear() {
+        while (spans.poll() != null) {
+            size.decrementAndGet();
+        }
+    }
+
+    private void record(RecordedSpan span) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        spans.add(span);
+    }
+
+    // Writes the start of an event, up to its timestamp; async events also get the span's id.
+    private void writeEvent(Writer out, RecordedSpan span, String phase, long threadId, long nanos)
+            throws IOException {
+        out.write("\n{\"name\":");
+        writeString(out, span.name);
+        out.write(",\"cat\":\"billing\",\"ph\":\"");
+        out.write(phase);
+        out.write("\",\"pid\":1,\"tid\":");
+        out.write(Long.toString(threadId));
+        if (!"X".equals(phase)) {
+            out.write(",\"id\":");
+            out.write(Long.toString(span.id));
+        }
+        out.write(",\"ts\":");
+        writeMicros(out, nanos - originNanos);
+    }
+
+    // Writes the args of an event and closes it.
+    private static void writeArgs(Writer out, RecordedSpan span) throws IOException {
+        out.write(",\"args\":{\"id\":");
+        out.write(Long.toString(span.id));
+        if (span.parentId != 0) {
+            out.write(",\"parent\":");
+            out.write(Long.toString(span.parentId));
+        }
+        for (Map.Entry<String, Object> tag : span.tags().entrySet()) {
+            out.write(',');
+            writeString(out, tag.getKey());
+            out.write(':');
+            Object value = tag.getValue();
+            if (value instanceof Number || value instanceof Boolean) {
+                out.write(String.valueOf(value));
+            } else {
+                writeString(out, String.valueOf(value));
+            }
+        }
+        out.write("}}");
+    }
+
+    private static void writeMicros(Writer out, long nanos) throws IOException {
+        out.write(Long.toString(nanos / 1000));
+        long fraction = nanos % 1000;
+        if (fraction != 0) {
+            out.write('.');
+            if (fraction < 100) out.write('0');
+            if (fraction < 10) out.write('0');
+            out.write(Long.toString(fraction));
+        }
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        out.write(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.write(c);
+                    }
+            }
+        }
+        out.write('"');
+    }
+
+    private final class RecordedSpan implements Span {
+        final long id;
+        final long parentId;
+        final String name;
+        final long threadId;
+        final String threadName;
+        final long startNanos;
+        long endNanos;
+        long endThreadId;
+        String endThreadName;
+        private Map<String, Object> tags;
+
+        RecordedSpan(long id, long parentId, String name) {
+            Thread thread = Thread.currentThread();
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.threadId = thread.getId();
+            this.threadName = thread.getName();
+            this.startNanos = System.nanoTime();
+        }
+
+        @Override
+        public synchronized void setTag(String key, Object value) {
+            if (tags == null) tags = new LinkedHashMap<String, Object>();
+            tags.put(key, value);
+        }
+
+        synchronized Map<String, Object> tags() {
+            return tags != null ? new LinkedHashMap<String, Object>(tags) : new LinkedHashMap<String, Object>();
+        }
+
+        @Override
+        public void end() {
+            synchronized (this) {
+                if (endNanos != 0) return;
+                endNanos = System.nanoTime();
+                Thread thread = Thread.currentThread();
+                endThreadId = thread.getId();
+                endThreadName = thread.getName();
+            }
+            record(this);
+        }
+    }
+}
@@ -18,29 +18,81 @@ package com.github.aistech.billing.model;
 import com.github.aistech.billing.utils.BillingHelper;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a block of information about in-app items.
  * An Inventory is returned by such methods as {@link BillingHelper#queryBillingInventory()}.
+ * <p>
+ * An inventory is an immutable snapshot: it is filled through a {@link Builder} and never
+ * changes afterwards, so it can be shared between threads and read without any locking.
+ * {@link #withoutPurchase(String)} returns an updated copy that shares everything the
+ * removal doesn't touch.
+ * <p>
+ * The SKU details are kept in a compact {@link BillingProductCatalog}.
+ * <p>
+ * Purchases are indexed by sku, item type and token when the snapshot is built, and by order
+ * id and purchase time on first use (these need the purchase fully parsed), so lookups and
+ * filtered queries cost in the size of their result rather than the inventory's.
  */
-public class BillingInventory {
+public final class BillingInventory {
 
-    private Map<String, BillingProduct> productsMap;
-    private Map<String, BillingPurchase> purchaseMap;
+    private static final Comparator<BillingPurchase> BY_PURCHASE_TIME = new Comparator<BillingPurchase>() {
+        @Override
+        public int compare(BillingPurchase lhs, BillingPurchase rhs) {
+            long l = lhs.getPurchaseTimeMillis();
+            long r = rhs.getPurchaseTimeMillis();
+            return l < r ? -1 : (l == r ? 0 : 1);
+        }
+    };
+
+    /* Never modified once the snapshot is built; builders copy them before changing anything */
+    private final BillingProductCatalog products;
+    private final Map<String, BillingPurchase> purchaseMap;
+    private final Map<String, Map<String, BillingPurchase>> purchasesByType;
+    private final Map<String, BillingPurchase> purchasesByToken;
+    private final boolean cached;
+
+    // Built on first use by whichever thread gets there first; racing builds are identical
+    private volatile Map<String, BillingPurchase> purchasesByOrderId;
+    private volatile TimeIndex purchasesByTime;
+
+    private BillingInventory(Builder builder) {
+        this.products = builder.catalog;
+        this.purchaseMap = builder.purchases;
+        this.purchasesByType = builder.purchasesByType;
+        this.purchasesByToken = builder.purchasesByToken;
+        this.cached = builder.cached;
+    }
 
-    public BillingInventory() {
-        this.productsMap = new HashMap<String, BillingProduct>();
-        this.purchaseMap = new HashMap<String, BillingPurchase>();
+    /**
+     * Returns whether this inventory was restored from a persisted copy, and may be outdated,
+     * instead of queried from the billing service.
+     */
+    public boolean isCached() {
+        return cached;
     }
 
     /**
      * Returns the listing details for an in-app product.
      */
     public BillingProduct getBillingProducts(String sku) {
-        return productsMap.get(sku);
+        return products.get(sku);
+    }
+
+    /**
+     * Returns the listing details of all products, in their compact form.
+     */
+    public BillingProductCatalog getProductCatalog() {
+        return products;
     }
 
     /**
@@ -61,19 +113,24 @@ public class BillingInventory {
      * Return whether or not details about the given product are available.
      */
     public boolean hasDetails(String sku) {
-        return productsMap.containsKey(sku);
+        return products.contains(sku);
     }
 
     /**
-     * Erase a purchase (locally) from the inventory, given its product ID. This just
-     * modifies the Inventory object locally and has no effect on the server! This is
-     * useful when you have an existing Inventory object which you know to be up to date,
-     * and you have just consumed an item successfully, which means that erasing its
-     * purchase data from the Inventory you already have is quicker than querying for
-     * a new Inventory.
+     * Returns a copy of this inventory without the purchase of the given product. This
+     * has no effect on the server! This is useful when you have an existing Inventory
+     * object which you know to be up to date, and you have just consumed an item
+     * successfully, which means that erasing its purchase data from the Inventory you
+     * already have is quicker than querying for a new Inventory.
+     * <p>
+     * The copy shares the product details and the purchases of the other item types with
+     * this inventory.
+     *
+     * @return the updated copy, or this inventory if it has no purchase of sku.
      */
-    public void erasePurchase(String sku) {
-        if (purchaseMap.containsKey(sku)) purchaseMap.remove(sku);
+    public BillingInventory withoutPurchase(String sku) {
+        if (!purchaseMap.containsKey(sku)) return this;
+        return new Builder(this).erasePurchase(sku).build();
     }
 
     /**
@@ -87,11 +144,97 @@ public class BillingInventory {
      * Returns a list of all owned product IDs of a given type
      */
     public List<String> getAllOwnedBillingProduct(String itemType) {
-        List<String> result = new ArrayList<String>();
-        for (BillingPurchase p : purchaseMap.values()) {
-            if (p.getItemType().equals(itemType)) result.add(p.getSku());
+        Map<String, BillingPurchase> purchases = purchasesByType.get(itemType);
+        if (purchases == null) return new ArrayList<String>();
+        return new ArrayList<String>(purchases.keySet());
+    }
+
+    /**
+     * Returns the purchases of a given type.
+     */
+    public List<BillingPurchase> getPurchases(String itemType) {
+        Map<String, BillingPurchase> purchases = purchasesByType.get(itemType);
+        if (purchases == null) return new ArrayList<BillingPurchase>();
+        return new ArrayList<BillingPurchase>(purchases.values());
+    }
+
+    /**
+     * Returns the purchase with the given token, or null if there is none.
+     */
+    public BillingPurchase getPurchaseByToken(String token) {
+        return purchasesByToken.get(token);
+    }
+
+    /**
+     * Returns the purchase with the given order id, or null if there is none.
+     */
+    public BillingPurchase getPurchaseByOrderId(String orderId) {
+        Map<String, BillingPurchase> index = purchasesByOrderId;
+        if (index == null) {
+            index = new HashMap<String, BillingPurchase>();
+            for (BillingPurchase p : purchaseMap.values()) {
+                index.put(p.getOrderId(), p);
+            }
+            purchasesByOrderId = index;
         }
-        return result;
+        return index.get(orderId);
+    }
+
+    /**
+     * Returns all purchases, oldest first.
+     */
+    public List<BillingPurchase> getPurchasesByTime() {
+        return Collections.unmodifiableList(Arrays.asList(timeIndex().purchases));
+    }
+
+    /**
+     * Returns the purchases made between two times, oldest first.
+     *
+     * @param fromMillis The start of the range, inclusive, in milliseconds since the epoch.
+     * @param toMillis   The end of the range, exclusive, in milliseconds since the epoch.
+     */
+    public List<BillingPurchase> getPurchasesBetween(long fromMillis, long toMillis) {
+        TimeIndex index = timeIndex();
+        int from = lowerBound(index.times, fromMillis);
+        int to = Math.max(from, lowerBound(index.times, toMillis));
+        return Collections.unmodifiableList(Arrays.asList(index.purchases).subList(from, to));
+    }
+
+    private TimeIndex timeIndex() {
+        TimeIndex index = purchasesByTime;
+        if (index == null) {
+            BillingPurchase[] purchases = purchaseMap.values().toArray(new BillingPurchase[purchaseMap.size()]);
+            Arrays.sort(purchases, BY_PURCHASE_TIME);
+            long[] times = new long[purchases.length];
+            for (int i = 0; i < purchases.length; i++) {
+                times[i] = purchases[i].getPurchaseTimeMillis();
+            }
+            index = new TimeIndex(purchases, times);
+            purchasesByTime = index;
+        }
+        return index;
+    }
+
+    // Index of the first time not before the given one
+    private static int lowerBound(long[] times, long time) {
+        int low = 0;
+        int high = times.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns a list of all products with listing details.
+     */
+    public List<BillingProduct> getAllBillingProducts() {
+        return products.toList();
     }
 
     /**
@@ -101,11 +244,177 @@ public class BillingInventory {
         return new ArrayList<BillingPurchase>(purchaseMap.values());
     }
 
-    public void addBillingProduct(BillingProduct d) {
-        productsMap.put(d.getSku(), d);
+    /**
+     * The purchases sorted by time, with their times alongside for binary searches.
+     */
+    private static final class TimeIndex {
+        final BillingPurchase[] purchases;
+        final long[] times;
+
+        TimeIndex(BillingPurchase[] purchases, long[] times) {
+            this.purchases = purchases;
+            this.times = times;
+        }
     }
 
-    public void addPurchase(BillingPurchase p) {
-        purchaseMap.put(p.getSku(), p);
+    /**
+     * Fills an inventory, typically on the thread refreshing it, before it is published as
+     * an immutable snapshot with {@link #build()}. A builder is not thread-safe.
+     * <p>
+     * Building doesn't copy the purchases: the snapshot takes over the builder's maps, and the
+     * builder copies a map again only if it is changed after that, and only the ones that
+     * change. The same goes for a builder started from an existing snapshot. The product
+     * catalog is only rebuilt if products were added since the last build.
+     */
+    public static final class Builder {
+
+        private BillingProductCatalog catalog;
+        private Map<String, BillingProduct> products;
+        private Map<String, BillingPurchase> purchases;
+        private Map<String, Map<String, BillingPurchase>> purchasesByType;
+        private Map<String, BillingPurchase> purchasesByToken;
+        private boolean cached;
+
+        /* Which maps this builder may change in place, the others being shared with a snapshot */
+        private boolean ownsPurchases;
+        private boolean ownsTypes;
+        private Set<String> ownedTypes = new HashSet<String>();
+
+        public Builder() {
+            this.catalog = BillingProductCatalog.EMPTY;
+            this.products = new LinkedHashMap<String, BillingProduct>();
+            this.purchases = new HashMap<String, BillingPurchase>();
+            this.purchasesByType = new HashMap<String, Map<String, BillingPurchase>>();
+            this.purchasesByToken = new HashMap<String, BillingPurchase>();
+            this.ownsPurchases = true;
+            this.ownsTypes = true;
+        }
+
+        /**
+         * Starts from the content of an existing snapshot, which is left unchanged.
+         */
+        public Builder(BillingInventory base) {
+            this.catalog = base.products;
+            this.products = new LinkedHashMap<String, BillingProduct>();
+            this.purchases = base.purchaseMap;
+            this.purchasesByType = base.purchasesByType;
+            this.purchasesByToken = base.purchasesByToken;
+            this.cached = base.cached;
+        }
+
+        /**
+         * @param cached whether the inventory is restored from a persisted copy instead of
+         *               queried from the billing service.
+         */
+        public Builder setCached(boolean cached) {
+            this.cached = cached;
+            return this;
+        }
+
+        public Builder addBillingProduct(BillingProduct d) {
+            products.put(d.getSku(), d);
+            return this;
+        }
+
+        public Builder addPurchase(BillingPurchase p) {
+            ownPurchases();
+            BillingPurchase replaced = purchases.put(p.getSku(), p);
+            if (replaced != null) unindex(replaced);
+            typeMap(p.getItemType()).put(p.getSku(), p);
+            purchasesByToken.put(p.getToken(), p);
+            return this;
+        }
+
+        /**
+         * Removes the purchase of the given product, if any.
+         */
+        public Builder erasePurchase(String sku) {
+            if (!purchases.containsKey(sku)) return this;
+            ownPurchases();
+            unindex(purchases.remove(sku));
+            return this;
+        }
+
+        /**
+         * Adds the products and purchases of another builder.
+         */
+        public Builder addAll(Builder other) {
+            for (BillingPurchase purchase : other.purchases.values()) {
+                addPurchase(purchase);
+            }
+            for (BillingProduct product : other.catalog.toList()) {
+                addBillingProduct(product);
+            }
+            for (BillingProduct product : other.products.values()) {
+                addBillingProduct(product);
+            }
+            return this;
+        }
+
+        /**
+         * Returns the purchases added so far.
+         */
+        public List<BillingPurchase> getAllPurchases() {
+            return new ArrayList<BillingPurchase>(purchases.values());
+        }
+
+        /**
+         * Returns the skus of the purchases of a given type added so far.
+         */
+        public List<String> getAllOwnedBillingProduct(String itemType) {
+            Map<String, BillingPurchase> purchases = purchasesByType.get(itemType);
+            if (purchases == null) return new ArrayList<String>();
+            return new ArrayList<String>(purchases.keySet());
+        }
+
+        /**
+         * Publishes the content as an immutable snapshot. The builder can still be used
+         * afterwards, without affecting the snapshot.
+         */
+        public BillingInventory build() {
+            if (!products.isEmpty()) {
+                List<BillingProduct> all = catalog.toList();
+                all.addAll(products.values());
+                catalog = new BillingProductCatalog(all);
+                products = new LinkedHashMap<String, BillingProduct>();
+            }
+            BillingInventory inv = new BillingInventory(this);
+            ownsPurchases = false;
+            ownsTypes = false;
+            ownedTypes = new HashSet<String>();
+            return inv;
+        }
+
+        private void ownPurchases() {
+            if (ownsPurchases) return;
+            purchases = new HashMap<String, BillingPurchase>(purchases);
+            purchasesByToken = new HashMap<String, BillingPurchase>(purchasesByToken);
+            ownsPurchases = true;
+        }
+
+        // The purchases of a type, copied first if shared with a snapshot
+        private Map<String, BillingPurchase> typeMap(String itemType) {
+            if (!ownsTypes) {
+                purchasesByType = new HashMap<String, Map<String, BillingPurchase>>(purchasesByType);
+                ownsTypes = true;
+            }
+            Map<String, BillingPurchase> map = purchasesByType.get(itemType);
+            if (map == null) {
+                map = new LinkedHashMap<String, BillingPurchase>();
+            } else if (!ownedTypes.contains(itemType)) {
+                map = new LinkedHashMap<String, BillingPurchase>(map);
+            } else {
+                return map;
+            }
+            purchasesByType.put(itemType, map);
+            ownedTypes.add(itemType);
+            return map;
+        }
+
+        private void unindex(BillingPurchase p) {
+            Map<String, BillingPurchase> byType = purchasesByType.get(p.getItemType());
+            if (byType != null && byType.get(p.getSku()) == p) typeMap(p.getItemType()).remove(p.getSku());
+            if (purchasesByToken.get(p.getToken()) == p) purchasesByToken.remove(p.getToken());
+        }
     }
 }
@@ -0,0 +1,64 @@
+package com.github.aistech.billing.model;
+
+/**
+ * The outcome of a synchronous billing operation: its {@link BillingResult} and, when it
+ * succeeded, the value it produced.
+ * <p>
+ * Returned by the *ForResult variants of the blocking methods of
+ * {@link com.github.aistech.billing.utils.BillingHelper}, which report failures through the
+ * result instead of throwing a {@link com.github.aistech.billing.exceptions.BillingException}.
+ * Expected failures, such as a cancelled purchase or an item that is already owned, then cost
+ * no exception at all, which matters to code that retries in a loop.
+ */
+public final class BillingOutcome<T> {
+
+    private final BillingResult result;
+    private final T value;
+    private final Exception cause;
+
+    private BillingOutcome(BillingResult result, T value, Exception cause) {
+        this.result = result;
+        this.value = value;
+        this.cause = cause;
+    }
+
+    public static <T> BillingOutcome<T> success(BillingResult result, T value) {
+        return new BillingOutcome<T>(result, value, null);
+    }
+
+    /**
+     * @param cause The exception that made the operation fail, such as a RemoteException, or null.
+     */
+    public static <T> BillingOutcome<T> failure(BillingResult result, Exception cause) {
+        return new BillingOutcome<T>(result, null, cause);
+    }
+
+    public boolean isSuccess() {
+        return result.isOk();
+    }
+
+    public boolean isFailure() {
+        return !isSuccess();
+    }
+
+    /* Getters */
+
+    public BillingResult getResult() {
+        return result;
+    }
+
+    /**
+     * Returns the value produced by the operation, or null if it failed.
+     */
+    public T getValue() {
+        return value;
+    }
+
+    public Exception getCause() {
+        return cause;
+    }
+
+    public String toString() {
+        return "BillingOutcome: " + result.getMessage();
+    }
+}
@@ -20,44 +20,155 @@ import com.github.aistech.billing.utils.BillingHelper;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
  * Represents an in-app product's listing details.
+ * <p>
+ * A product created lazily only scans its JSON for the sku; the other fields are parsed the
+ * first time one of their getters is called. {@link #getJson()} is always the exact string
+ * the product was created from.
+ * <p>
+ * The JSON is read with {@link JsonFieldScanner}, falling back to {@link JSONObject} when it
+ * doesn't have the usual shape.
  */
 public class BillingProduct implements Serializable {
 
     private static final long serialVersionUID = 2826221906063716276L;
 
+    // The serialized form of the first versions, with a boxed price, so that products
+    // serialized by them can still be read, and the other way around
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("sku", String.class),
+            new ObjectStreamField("itemType", String.class),
+            new ObjectStreamField("type", String.class),
+            new ObjectStreamField("price", String.class),
+            new ObjectStreamField("priceAmountMicros", Long.class),
+            new ObjectStreamField("priceCurrencyCode", String.class),
+            new ObjectStreamField("title", String.class),
+            new ObjectStreamField("description", String.class),
+            new ObjectStreamField("json", String.class),
+    };
+
+    private static final String[] FIELDS = {"productId", "type", "price", "price_amount_micros",
+            "price_currency_code", "title", "description"};
+
     private String sku;
     private String itemType;
     private String type;
     private String price;
-    private Long priceAmountMicros;
+    private long priceAmountMicros;
     private String priceCurrencyCode;
     private String title;
     private String description;
     private String json;
 
+    // Whether the fields other than sku were read from json
+    private volatile boolean parsed;
+
     public BillingProduct(String json) throws JSONException {
         this(BillingHelper.ITEM_TYPE_INAPP, json);
     }
 
     public BillingProduct(String itemType, String json) throws JSONException {
-        this.itemType = itemType;
+        this(itemType, json, false);
+    }
+
+    /**
+     * @param lazy If true, only the sku is read now, and the rest of the JSON on first access
+     *             to another field. The JSON structure is checked either way.
+     */
+    public BillingProduct(String itemType, String json, boolean lazy) throws JSONException {
+        this.itemType = BillingStrings.intern(itemType);
         this.json = json;
 
-        JSONObject jsonObject = new JSONObject(this.json);
+        if (lazy) {
+            try {
+                String sku = JsonFieldScanner.scan(this.json, "productId")[0];
+                this.sku = sku != null ? sku : "";
+                return;
+            } catch (JSONException e) {
+                // Not plain JSON; parse it all now, so JSONObject decides.
+            }
+        }
+        parse();
+    }
+
+    private void parse() throws JSONException {
+        try {
+            readFields(new JsonFieldScanner(this.json));
+        } catch (JSONException e) {
+            readFields(new JSONObject(this.json));
+        }
+        this.parsed = true;
+    }
+
+    private void readFields(JsonFieldScanner scanner) throws JSONException {
+        String sku = "", type = "", price = "", priceCurrencyCode = "", title = "", description = "";
+        long priceAmountMicros = 0;
+        while (scanner.nextField()) {
+            switch (scanner.matchKey(FIELDS)) {
+                case 0:
+                    sku = scanner.readString();
+                    break;
+                case 1:
+                    type = scanner.readString();
+                    break;
+                case 2:
+                    price = scanner.readString();
+                    break;
+                case 3:
+                    priceAmountMicros = scanner.readLong();
+                    break;
+                case 4:
+                    priceCurrencyCode = scanner.readString();
+                    break;
+                case 5:
+                    title = scanner.readString();
+                    break;
+                case 6:
+                    description = scanner.readString();
+                    break;
+                default:
+                    scanner.skipValue();
+            }
+        }
+        this.sku = sku;
+        this.type = BillingStrings.intern(type);
+        this.price = BillingStrings.intern(price);
+        this.priceAmountMicros = priceAmountMicros;
+        this.priceCurrencyCode = BillingStrings.intern(priceCurrencyCode);
+        this.title = title;
+        this.description = description;
+    }
 
+    private void readFields(JSONObject jsonObject) {
         this.sku = jsonObject.optString("productId");
-        this.type = jsonObject.optString("type");
-        this.price = jsonObject.optString("price");
+        this.type = BillingStrings.intern(jsonObject.optString("type"));
+        this.price = BillingStrings.intern(jsonObject.optString("price"));
         this.priceAmountMicros = jsonObject.optLong("price_amount_micros");
-        this.priceCurrencyCode = jsonObject.optString("price_currency_code");
+        this.priceCurrencyCode = BillingStrings.intern(jsonObject.optString("price_currency_code"));
         this.title = jsonObject.optString("title");
         this.description = jsonObject.optString("description");
     }
 
+    private void ensureParsed() {
+        if (parsed) return;
+        synchronized (this) {
+            if (parsed) return;
+            try {
+                parse();
+            } catch (JSONException e) {
+                // The structure was checked on creation, so this can't really happen.
+                throw new IllegalStateException("Unable to parse product " + this.json, e);
+            }
+        }
+    }
+
     public String getSku() {
         return sku;
     }
@@ -67,26 +178,40 @@ public class BillingProduct implements Serializable {
     }
 
     public String getType() {
+        ensureParsed();
         return type;
     }
 
     public String getPrice() {
+        ensureParsed();
         return price;
     }
 
-    public Long getPriceAmountMicros() {
+    public long getPriceMicros() {
+        ensureParsed();
         return priceAmountMicros;
     }
 
+    /**
+     * @deprecated Boxes the price; use {@link #getPriceMicros()}.
+     */
+    @Deprecated
+    public Long getPriceAmountMicros() {
+        return getPriceMicros();
+    }
+
     public String getPriceCurrencyCode() {
+        ensureParsed();
         return priceCurrencyCode;
     }
 
     public String getTitle() {
+        ensureParsed();
         return title;
     }
 
     public String getDescription() {
+        ensureParsed();
         return description;
     }
 
@@ -94,6 +219,36 @@ public class BillingProduct implements Serializable {
         return json;
     }
 
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ensureParsed();
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("sku", sku);
+        fields.put("itemType", itemType);
+        fields.put("type", type);
+        fields.put("price", price);
+        fields.put("priceAmountMicros", Long.valueOf(priceAmountMicros));
+        fields.put("priceCurrencyCode", priceCurrencyCode);
+        fields.put("title", title);
+        fields.put("description", description);
+        fields.put("json", json);
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Long priceAmountMicros = (Long) fields.get("priceAmountMicros", null);
+        this.sku = (String) fields.get("sku", null);
+        this.itemType = BillingStrings.intern((String) fields.get("itemType", null));
+        this.type = BillingStrings.intern((String) fields.get("type", null));
+        this.price = BillingStrings.intern((String) fields.get("price", null));
+        this.priceAmountMicros = priceAmountMicros != null ? priceAmountMicros : 0L;
+        this.priceCurrencyCode = BillingStrings.intern((String) fields.get("priceCurrencyCode", null));
+        this.title = (String) fields.get("title", null);
+        this.description = (String) fields.get("description", null);
+        this.json = (String) fields.get("json", null);
+        this.parsed = true;
+    }
+
     @Override
     public String toString() {
         return "BillingProduct:" + this.json;
@@ -0,0 +1,136 @@
+package com.github.aistech.billing.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact, immutable store of the SKU details of an inventory.
+ * <p>
+ * One row per SKU, found through an open-addressing index of the skus instead of a map of
+ * entries. Each row keeps the {@link BillingProduct} it was built from, so lazy products stay
+ * lazy: a row's JSON is only parsed the first time one of its details is read. The strings
+ * that repeat across products (item types, product types, currency codes, formatted prices)
+ * are interned by the products as they are parsed.
+ * <p>
+ * {@link #get(String)} and {@link #get(int)} return the row's product itself, without
+ * allocating.
+ */
+public final class BillingProductCatalog {
+
+    static final BillingProductCatalog EMPTY = new BillingProductCatalog(Collections.<BillingProduct>emptyList());
+
+    // Open-addressing index of the rows by sku, holding row + 1 (0 marks a free slot)
+    private final int[] slots;
+    private final String[] skus;
+    private final BillingProduct[] products;
+
+    /**
+     * Builds a catalog from products, without parsing them further; a product whose sku
+     * appears twice replaces the previous one.
+     */
+    public BillingProductCatalog(Collection<BillingProduct> products) {
+        Map<String, BillingProduct> unique = new HashMap<String, BillingProduct>(products.size() * 2);
+        List<BillingProduct> ordered = new ArrayList<BillingProduct>(products.size());
+        for (BillingProduct product : products) {
+            if (unique.put(product.getSku(), product) == null) ordered.add(product);
+        }
+
+        int size = ordered.size();
+        this.slots = new int[Integer.highestOneBit(Math.max(size, 1) * 2) * 2];
+        this.skus = new String[size];
+        this.products = new BillingProduct[size];
+
+        for (int i = 0; i < size; i++) {
+            BillingProduct product = unique.get(ordered.get(i).getSku());
+            slots[freeSlot(product.getSku())] = i + 1;
+            skus[i] = product.getSku();
+            this.products[i] = product;
+        }
+    }
+
+    private int freeSlot(String sku) {
+        int mask = slots.length - 1;
+        int slot = sku.hashCode() & mask;
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    public int size() {
+        return skus.length;
+    }
+
+    public boolean contains(String sku) {
+        return indexOf(sku) >= 0;
+    }
+
+    /**
+     * Returns the row of a SKU, for the row accessors, or -1 if the catalog doesn't have it.
+     */
+    public int indexOf(String sku) {
+        if (sku == null) return -1;
+        int mask = slots.length - 1;
+        int slot = sku.hashCode() & mask;
+        while (slots[slot] != 0) {
+            int row = slots[slot] - 1;
+            if (skus[row].equals(sku)) return row;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the details of a SKU, or null if the catalog doesn't have it.
+     */
+    public BillingProduct get(String sku) {
+        int row = indexOf(sku);
+        return row >= 0 ? get(row) : null;
+    }
+
+    /**
+     * Returns the details at a row.
+     */
+    public BillingProduct get(int row) {
+        return products[row];
+    }
+
+    public String getSku(int row) {
+        return skus[row];
+    }
+
+    public String getItemType(int row) {
+        return products[row].getItemType();
+    }
+
+    public String getPrice(int row) {
+        return products[row].getPrice();
+    }
+
+    public long getPriceMicros(int row) {
+        return products[row].getPriceMicros();
+    }
+
+    public String getPriceCurrencyCode(int row) {
+        return products[row].getPriceCurrencyCode();
+    }
+
+    /**
+     * Returns the SKUs, in row order.
+     */
+    public List<String> getSkus() {
+        return Collections.unmodifiableList(Arrays.asList(skus));
+    }
+
+    /**
+     * Returns every product, in row order.
+     */
+    public List<BillingProduct> toList() {
+        return new ArrayList<BillingProduct>(Arrays.asList(products));
+    }
+}
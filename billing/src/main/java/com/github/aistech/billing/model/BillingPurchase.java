@@ -20,15 +20,45 @@ import com.github.aistech.billing.utils.BillingHelper;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
  * Represents an in-app billing purchase.
+ * <p>
+ * A purchase created lazily only scans its JSON for the sku and the token; the other fields
+ * are parsed the first time one of their getters is called. {@link #getOriginalJson()} is
+ * always the exact string the purchase was created from.
+ * <p>
+ * The JSON is read with {@link JsonFieldScanner}, falling back to {@link JSONObject} when it
+ * doesn't have the usual shape.
  */
 public class BillingPurchase implements Serializable {
 
     private static final long serialVersionUID = 2792749608498709442L;
 
+    // The serialized form of the first versions, with boxed numbers and flag, so that purchases
+    // serialized by them can still be read, and the other way around
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("itemType", String.class),
+            new ObjectStreamField("sku", String.class),
+            new ObjectStreamField("token", String.class),
+            new ObjectStreamField("orderId", String.class),
+            new ObjectStreamField("packageName", String.class),
+            new ObjectStreamField("purchaseTime", Long.class),
+            new ObjectStreamField("developerPayload", String.class),
+            new ObjectStreamField("purchaseState", Integer.class),
+            new ObjectStreamField("originalJson", String.class),
+            new ObjectStreamField("signature", String.class),
+            new ObjectStreamField("isAutoRenewing", Boolean.class),
+    };
+
+    private static final String[] FIELDS = {"orderId", "packageName", "productId", "purchaseTime",
+            "purchaseState", "developerPayload", "token", "purchaseToken", "autoRenewing"};
+
     /**
      * Is either {@link BillingHelper#ITEM_TYPE_INAPP}
      * or {@link BillingHelper#ITEM_TYPE_SUBS}
@@ -39,27 +69,123 @@ public class BillingPurchase implements Serializable {
     private String token;
     private String orderId;
     private String packageName;
-    private Long purchaseTime;
+    private long purchaseTime;
     private String developerPayload;
-    private Integer purchaseState;
+    private int purchaseState;
     private String originalJson;
     private String signature;
-    private Boolean isAutoRenewing;
+    private boolean isAutoRenewing;
+
+    // Whether the fields other than sku and token were read from originalJson
+    private volatile boolean parsed;
 
     public BillingPurchase(String itemType, String jsonPurchaseInfo, String signature) throws JSONException {
-        this.itemType = itemType;
+        this(itemType, jsonPurchaseInfo, signature, false);
+    }
+
+    /**
+     * @param lazy If true, only the sku and the token are read now, and the rest of the JSON
+     *             on first access to another field. The JSON structure is checked either way.
+     */
+    public BillingPurchase(String itemType, String jsonPurchaseInfo, String signature, boolean lazy)
+            throws JSONException {
+        this.itemType = BillingStrings.intern(itemType);
         this.originalJson = jsonPurchaseInfo;
+        this.signature = signature;
+
+        if (lazy) {
+            try {
+                String[] values = JsonFieldScanner.scan(originalJson, "productId", "token", "purchaseToken");
+                this.sku = values[0] != null ? values[0] : "";
+                this.token = values[1] != null ? values[1] : values[2] != null ? values[2] : "";
+                return;
+            } catch (JSONException e) {
+                // Not plain JSON; parse it all now, so JSONObject decides.
+            }
+        }
+        parse();
+    }
 
-        JSONObject jsonObject = new JSONObject(originalJson);
+    private void parse() throws JSONException {
+        try {
+            readFields(new JsonFieldScanner(originalJson));
+        } catch (JSONException e) {
+            readFields(new JSONObject(originalJson));
+        }
+        this.parsed = true;
+    }
+
+    private void readFields(JsonFieldScanner scanner) throws JSONException {
+        String orderId = "", packageName = "", sku = "", developerPayload = "";
+        String token = null, purchaseToken = "";
+        long purchaseTime = 0;
+        int purchaseState = 0;
+        boolean autoRenewing = false;
+        while (scanner.nextField()) {
+            switch (scanner.matchKey(FIELDS)) {
+                case 0:
+                    orderId = scanner.readString();
+                    break;
+                case 1:
+                    packageName = scanner.readString();
+                    break;
+                case 2:
+                    sku = scanner.readString();
+                    break;
+                case 3:
+                    purchaseTime = scanner.readLong();
+                    break;
+                case 4:
+                    purchaseState = scanner.readInt();
+                    break;
+                case 5:
+                    developerPayload = scanner.readString();
+                    break;
+                case 6:
+                    token = scanner.readString();
+                    break;
+                case 7:
+                    purchaseToken = scanner.readString();
+                    break;
+                case 8:
+                    autoRenewing = scanner.readBoolean();
+                    break;
+                default:
+                    scanner.skipValue();
+            }
+        }
+        this.orderId = orderId;
+        this.packageName = BillingStrings.intern(packageName);
+        this.sku = sku;
+        this.purchaseTime = purchaseTime;
+        this.purchaseState = purchaseState;
+        this.developerPayload = developerPayload;
+        this.token = token != null ? token : purchaseToken;
+        this.isAutoRenewing = autoRenewing;
+    }
+
+    private void readFields(JSONObject jsonObject) {
         this.orderId = jsonObject.optString("orderId");
-        this.packageName = jsonObject.optString("packageName");
+        this.packageName = BillingStrings.intern(jsonObject.optString("packageName"));
         this.sku = jsonObject.optString("productId");
         this.purchaseTime = jsonObject.optLong("purchaseTime");
         this.purchaseState = jsonObject.optInt("purchaseState");
         this.developerPayload = jsonObject.optString("developerPayload");
         this.token = jsonObject.optString("token", jsonObject.optString("purchaseToken"));
         this.isAutoRenewing = jsonObject.optBoolean("autoRenewing");
-        this.signature = signature;
+    }
+
+    private void ensureParsed() {
+        if (parsed) return;
+        synchronized (this) {
+            if (parsed) return;
+            try {
+                parse();
+            } catch (JSONException e) {
+                // The structure was checked on creation, so this can't really happen.
+                throw new IllegalStateException("Unable to parse purchase " + originalJson, e);
+            }
+        }
     }
 
     public String getItemType() {
@@ -75,25 +201,46 @@ public class BillingPurchase implements Serializable {
     }
 
     public String getOrderId() {
+        ensureParsed();
         return orderId;
     }
 
     public String getPackageName() {
+        ensureParsed();
         return packageName;
     }
 
-    public Long getPurchaseTime() {
+    public long getPurchaseTimeMillis() {
+        ensureParsed();
         return purchaseTime;
     }
 
+    /**
+     * @deprecated Boxes the purchase time; use {@link #getPurchaseTimeMillis()}.
+     */
+    @Deprecated
+    public Long getPurchaseTime() {
+        return getPurchaseTimeMillis();
+    }
+
     public String getDeveloperPayload() {
+        ensureParsed();
         return developerPayload;
     }
 
-    public Integer getPurchaseState() {
+    public int getPurchaseStateCode() {
+        ensureParsed();
         return purchaseState;
     }
 
+    /**
+     * @deprecated Boxes the purchase state; use {@link #getPurchaseStateCode()}.
+     */
+    @Deprecated
+    public Integer getPurchaseState() {
+        return getPurchaseStateCode();
+    }
+
     public String getOriginalJson() {
         return originalJson;
     }
@@ -102,10 +249,55 @@ public class BillingPurchase implements Serializable {
         return signature;
     }
 
-    public Boolean getAutoRenewing() {
+    public boolean isAutoRenewing() {
+        ensureParsed();
         return isAutoRenewing;
     }
 
+    /**
+     * @deprecated Boxes the flag; use {@link #isAutoRenewing()}.
+     */
+    @Deprecated
+    public Boolean getAutoRenewing() {
+        return isAutoRenewing();
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ensureParsed();
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("itemType", itemType);
+        fields.put("sku", sku);
+        fields.put("token", token);
+        fields.put("orderId", orderId);
+        fields.put("packageName", packageName);
+        fields.put("purchaseTime", Long.valueOf(purchaseTime));
+        fields.put("developerPayload", developerPayload);
+        fields.put("purchaseState", Integer.valueOf(purchaseState));
+        fields.put("originalJson", originalJson);
+        fields.put("signature", signature);
+        fields.put("isAutoRenewing", Boolean.valueOf(isAutoRenewing));
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        Long purchaseTime = (Long) fields.get("purchaseTime", null);
+        Integer purchaseState = (Integer) fields.get("purchaseState", null);
+        Boolean autoRenewing = (Boolean) fields.get("isAutoRenewing", null);
+        this.itemType = BillingStrings.intern((String) fields.get("itemType", null));
+        this.sku = (String) fields.get("sku", null);
+        this.token = (String) fields.get("token", null);
+        this.orderId = (String) fields.get("orderId", null);
+        this.packageName = BillingStrings.intern((String) fields.get("packageName", null));
+        this.purchaseTime = purchaseTime != null ? purchaseTime : 0L;
+        this.developerPayload = (String) fields.get("developerPayload", null);
+        this.purchaseState = purchaseState != null ? purchaseState : 0;
+        this.originalJson = (String) fields.get("originalJson", null);
+        this.signature = (String) fields.get("signature", null);
+        this.isAutoRenewing = autoRenewing != null && autoRenewing;
+        this.parsed = true;
+    }
+
     @Override
     public String toString() {
         return "PurchaseInfo(type:" + itemType + "):" + originalJson;
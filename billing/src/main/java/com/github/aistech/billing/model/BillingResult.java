@@ -21,41 +21,116 @@ import com.github.aistech.billing.utils.BillingHelper;
  * Represents the result of an in-app billing operation.
  * A result is composed of a response code (an integer) and possibly a
  * message (String). You can get those by calling
- * {@link #getResponse} and {@link #getMessage()}, respectively. You
+ * {@link #getResponseCode()} and {@link #getMessage()}, respectively. You
  * can also inquire whether a result is a success or a failure by
  * calling {@link #isSuccess()} and {@link #isFailure()}.
+ * <p>
+ * Results are immutable. The full message is only put together the first time
+ * {@link #getMessage()} or {@link #toString()} is called, and {@link #of(int)} returns shared
+ * instances for the known response codes, so creating a result costs a single small object,
+ * or nothing at all.
  */
 public class BillingResult {
 
-    private Integer response;
+    private static final int FIRST_CODE = BillingHelper.IABHELPER_SUBSCRIPTION_UPDATE_NOT_AVAILABLE;
+    private static final int LAST_CODE = BillingHelper.BILLING_RESPONSE_RESULT_ITEM_NOT_OWNED;
+
+    // Shared results without a message, indexed by code - FIRST_CODE
+    private static final BillingResult[] sShared = new BillingResult[LAST_CODE - FIRST_CODE + 1];
+
+    static {
+        for (int code = FIRST_CODE; code <= LAST_CODE; code++) {
+            if (code < 0 && code > BillingHelper.IABHELPER_ERROR_BASE) continue;
+            sShared[code - FIRST_CODE] = new BillingResult(code, null);
+        }
+    }
+
+    private final int response;
+    private final String detail;
+    private final String subject;
+
+    // Built from the fields above on first use; racing threads build equal strings
     private String message;
 
+    public BillingResult(int response, String message) {
+        this(response, message, null);
+    }
+
+    /**
+     * @deprecated Boxes the response code; use {@link #BillingResult(int, String)}.
+     */
+    @Deprecated
     public BillingResult(Integer response, String message) {
+        this(response.intValue(), message, null);
+    }
+
+    /**
+     * Creates a result whose message is message followed by subject, typically the SKU the
+     * operation was about; the two are only joined if the message is read.
+     */
+    public BillingResult(int response, String message, String subject) {
         this.response = response;
+        this.detail = message == null || message.trim().length() == 0 ? null : message;
+        this.subject = subject;
+    }
 
-        if (message == null || message.trim().length() == 0) {
-            this.message = BillingHelper.getResponseDesc(response);
-        } else {
-            this.message = message + " (response: " + BillingHelper.getResponseDesc(response) + ")";
+    /**
+     * Returns a result for a response code without any further message, shared between all
+     * callers for the codes known to {@link BillingHelper#getResponseDesc(int)}.
+     */
+    public static BillingResult of(int response) {
+        if (response >= FIRST_CODE && response <= LAST_CODE) {
+            BillingResult shared = sShared[response - FIRST_CODE];
+            if (shared != null) return shared;
         }
+        return new BillingResult(response, null);
     }
 
     public Boolean isSuccess() {
+        return Boolean.valueOf(isOk());
+    }
+
+    /**
+     * Same as {@link #isSuccess()}, without boxing.
+     */
+    public boolean isOk() {
         return response == BillingHelper.BILLING_RESPONSE_RESULT_OK;
     }
 
     public boolean isFailure() {
-        return !isSuccess();
+        return !isOk();
     }
 
     /* Getters and Setters */
 
+    public int getResponseCode() {
+        return response;
+    }
+
+    /**
+     * @deprecated Boxes the response code; use {@link #getResponseCode()}.
+     */
+    @Deprecated
     public Integer getResponse() {
         return response;
     }
 
     public String getMessage() {
-        return message;
+        String m = message;
+        if (m == null) {
+            if (detail == null && subject == null) {
+                m = BillingHelper.getResponseDesc(response);
+            } else {
+                String desc = BillingHelper.getResponseDesc(response);
+                StringBuilder builder = new StringBuilder((detail != null ? detail.length() : 0)
+                        + (subject != null ? subject.length() : 0) + desc.length() + 13);
+                if (detail != null) builder.append(detail);
+                if (subject != null) builder.append(subject);
+                m = builder.append(" (response: ").append(desc).append(')').toString();
+            }
+            message = m;
+        }
+        return m;
     }
 
     public String toString() {
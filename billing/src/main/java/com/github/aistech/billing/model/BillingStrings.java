@@ -0,0 +1,34 @@
+package com.github.aistech.billing.model;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Interning table for the strings that repeat across many models: item types, product
+ * types, currency codes, package names and formatted prices. A catalog of thousands of
+ * products then holds one copy of "BRL" or "inapp" instead of one per product.
+ * <p>
+ * The table is bounded, so unexpected high-cardinality values can't grow it without limit;
+ * once full, new values are simply returned as they are.
+ */
+final class BillingStrings {
+
+    static final int MAX_SIZE = 2048;
+
+    private static final ConcurrentHashMap<String, String> sTable = new ConcurrentHashMap<String, String>();
+
+    private BillingStrings() {
+    }
+
+    /**
+     * Returns the canonical instance of the given string, or the string itself if it is
+     * null or the table is full.
+     */
+    static String intern(String value) {
+        if (value == null) return null;
+        String canonical = sTable.get(value);
+        if (canonical != null) return canonical;
+        if (sTable.size() >= MAX_SIZE) return value;
+        canonical = sTable.putIfAbsent(value, value);
+        return canonical != null ? canonical : value;
+    }
+}
@@ -0,0 +1,350 @@
+package com.github.aistech.billing.model;
+
+import org.json.JSONException;
+
+/**
+ * Streams the top-level fields of a JSON object without building it, for the flat payloads
+ * returned by the billing service (purchases and SKU details).
+ * <p>
+ * Keys are matched in place against the fields a model knows, so unknown fields cost no
+ * allocation, and numbers and booleans are read without going through strings or boxes.
+ * Anything outside the expected shapes (a value of another type, a null, a non-integral
+ * number...) throws a {@link JSONException}, upon which the models fall back to
+ * {@link org.json.JSONObject}, so that case behaves exactly as before.
+ * <pre>
+ * JsonFieldScanner scanner = new JsonFieldScanner(json);
+ * while (scanner.nextField()) {
+ *     switch (scanner.matchKey(KEYS)) {
+ *         case 0: sku = scanner.readString(); break;
+ *         default: scanner.skipValue();
+ *     }
+ * }
+ * </pre>
+ */
+final class JsonFieldScanner {
+
+    private final String mJson;
+    private final int mLength;
+    private int mPos;
+    private boolean mStarted;
+    private boolean mFinished;
+
+    JsonFieldScanner(String json) throws JSONException {
+        if (json == null) throw new JSONException("No JSON to scan");
+        mJson = json;
+        mLength = json.length();
+    }
+
+    /**
+     * Scans a JSON object for the given top-level keys.
+     *
+     * @return the values, in the order of the keys; null for keys that are missing or whose
+     * value is an object or an array. Strings are unescaped and other scalars returned as
+     * their literal text, as {@link org.json.JSONObject#optString} would.
+     * @throws JSONException if json is not a well-formed JSON object.
+     */
+    static String[] scan(String json, String... keys) throws JSONException {
+        String[] values = new String[keys.length];
+        JsonFieldScanner scanner = new JsonFieldScanner(json);
+        while (scanner.nextField()) {
+            int index = scanner.matchKey(keys);
+            if (index < 0) {
+                scanner.skipValue();
+            } else {
+                // The last occurrence of a duplicate key wins, as in JSONObject.
+                values[index] = scanner.readScalar();
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Moves to the next field of the object.
+     *
+     * @return false once the object is closed; the rest of the text is then checked to be empty.
+     */
+    boolean nextField() throws JSONException {
+        if (mFinished) return false;
+        if (!mStarted) {
+            expect('{');
+            mStarted = true;
+            if (peek() != '}') return true;
+        }
+        char c = next();
+        if (c == ',') return true;
+        if (c != '}') throw error("Expected ',' or '}'");
+        if (peek() != 0) throw error("Unexpected text after the object");
+        mFinished = true;
+        return false;
+    }
+
+    /**
+     * Reads the key of the current field and the colon following it.
+     *
+     * @return the index of the key in keys, or -1 if it is none of them.
+     */
+    int matchKey(String[] keys) throws JSONException {
+        if (peek() != '"') throw error("Expected a key");
+        int start = mPos + 1;
+        int end = start;
+        boolean escaped = false;
+        while (end < mLength) {
+            char c = mJson.charAt(end);
+            if (c == '"') break;
+            if (c == '\\') {
+                escaped = true;
+                break;
+            }
+            end++;
+        }
+
+        int index = -1;
+        if (escaped) {
+            index = indexOf(keys, readString());
+        } else {
+            if (end >= mLength) throw error("Unterminated string");
+            int length = end - start;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].length() == length && mJson.regionMatches(start, keys[i], 0, length)) {
+                    index = i;
+                    break;
+                }
+            }
+            mPos = end + 1;
+        }
+        expect(':');
+        return index;
+    }
+
+    private static int indexOf(String[] keys, String key) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i].equals(key)) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Reads a string value.
+     */
+    String readString() throws JSONException {
+        if (peek() != '"') throw error("Expected a string");
+        int start = ++mPos;
+        // Fast path: no escapes, the value is a plain substring.
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (c == '"') return mJson.substring(start, mPos++);
+            if (c == '\\') break;
+            mPos++;
+        }
+        StringBuilder builder = new StringBuilder(mLength - start);
+        builder.append(mJson, start, mPos);
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return builder.toString();
+            if (c != '\\') {
+                builder.append(c);
+                continue;
+            }
+            if (mPos >= mLength) break;
+            char escaped = mJson.charAt(mPos++);
+            switch (escaped) {
+                case 'u':
+                    builder.append(readHexChar());
+                    break;
+                case 't':
+                    builder.append('\t');
+                    break;
+                case 'b':
+                    builder.append('\b');
+                    break;
+                case 'n':
+                    builder.append('\n');
+                    break;
+                case 'r':
+                    builder.append('\r');
+                    break;
+                case 'f':
+                    builder.append('\f');
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    builder.append(escaped);
+                    break;
+                default:
+                    throw error("Invalid escape sequence");
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private char readHexChar() throws JSONException {
+        if (mPos + 4 > mLength) throw error("Unterminated escape sequence");
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int digit = Character.digit(mJson.charAt(mPos++), 16);
+            if (digit < 0) throw error("Invalid escape sequence");
+            value = (value << 4) | digit;
+        }
+        return (char) value;
+    }
+
+    /**
+     * Reads an integral number value.
+     */
+    long readLong() throws JSONException {
+        peek();
+        int start = mPos;
+        boolean negative = start < mLength && mJson.charAt(start) == '-';
+        if (negative) mPos++;
+        long value = 0;
+        while (mPos < mLength) {
+            int digit = mJson.charAt(mPos) - '0';
+            if (digit < 0 || digit > 9) break;
+            if (value > (Long.MAX_VALUE - digit) / 10) throw error("Number out of range");
+            value = value * 10 + digit;
+            mPos++;
+        }
+        if (mPos == start + (negative ? 1 : 0)) throw error("Expected a number");
+        if (mPos < mLength && !isDelimiter(mJson.charAt(mPos))) throw error("Expected an integral number");
+        return negative ? -value : value;
+    }
+
+    /**
+     * Reads an integral number value that fits an int.
+     */
+    int readInt() throws JSONException {
+        long value = readLong();
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw error("Number out of range");
+        return (int) value;
+    }
+
+    /**
+     * Reads a boolean value.
+     */
+    boolean readBoolean() throws JSONException {
+        peek();
+        if (mJson.startsWith("true", mPos) && isValueEnd(mPos + 4)) {
+            mPos += 4;
+            return true;
+        }
+        if (mJson.startsWith("false", mPos) && isValueEnd(mPos + 5)) {
+            mPos += 5;
+            return false;
+        }
+        throw error("Expected a boolean");
+    }
+
+    // Reads a scalar value as optString would return it, or skips a nested value.
+    private String readScalar() throws JSONException {
+        char c = peek();
+        if (c == '"') return readString();
+        if (c == '{' || c == '[') {
+            skipValue();
+            return null;
+        }
+        int start = mPos;
+        skipLiteral();
+        return mJson.substring(start, mPos);
+    }
+
+    /**
+     * Skips the value of the current field, whatever its type.
+     */
+    void skipValue() throws JSONException {
+        char c = peek();
+        switch (c) {
+            case '"':
+                skipString();
+                return;
+            case '{':
+                mPos++;
+                if (peek() == '}') {
+                    mPos++;
+                    return;
+                }
+                while (true) {
+                    if (peek() != '"') throw error("Expected a key");
+                    skipString();
+                    expect(':');
+                    skipValue();
+                    char d = next();
+                    if (d == '}') return;
+                    if (d != ',') throw error("Expected ',' or '}'");
+                }
+            case '[':
+                mPos++;
+                if (peek() == ']') {
+                    mPos++;
+                    return;
+                }
+                while (true) {
+                    skipValue();
+                    char d = next();
+                    if (d == ']') return;
+                    if (d != ',') throw error("Expected ',' or ']'");
+                }
+            default:
+                skipLiteral();
+        }
+    }
+
+    // Numbers, true, false and null.
+    private void skipLiteral() throws JSONException {
+        int start = mPos;
+        while (mPos < mLength && !isDelimiter(mJson.charAt(mPos))) {
+            mPos++;
+        }
+        if (mPos == start) throw error("Expected a value");
+    }
+
+    private void skipString() throws JSONException {
+        mPos++;
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos++);
+            if (c == '"') return;
+            if (c == '\\') {
+                if (mPos >= mLength) break;
+                if (mJson.charAt(mPos++) == 'u') mPos += 4;
+            }
+        }
+        throw error("Unterminated string");
+    }
+
+    private void expect(char expected) throws JSONException {
+        if (next() != expected) throw error("Expected '" + expected + "'");
+    }
+
+    // Returns the next non-whitespace character and moves past it, or 0 at the end.
+    private char next() {
+        char c = peek();
+        if (c != 0) mPos++;
+        return c;
+    }
+
+    // Returns the next non-whitespace character without moving past it, or 0 at the end.
+    private char peek() {
+        while (mPos < mLength) {
+            char c = mJson.charAt(mPos);
+            if (!isWhitespace(c)) return c;
+            mPos++;
+        }
+        return 0;
+    }
+
+    private boolean isValueEnd(int pos) {
+        return pos >= mLength || isDelimiter(mJson.charAt(pos));
+    }
+
+    private static boolean isDelimiter(char c) {
+        return c == ',' || c == '}' || c == ']' || c == ':' || c == '"' || isWhitespace(c);
+    }
+
+    private static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r';
+    }
+
+    private JSONException error(String message) {
+        return new JSONException(message + " at character " + mPos + " of " + mJson);
+    }
+}
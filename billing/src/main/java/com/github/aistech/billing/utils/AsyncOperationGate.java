@@ -0,0 +1,150 @@
+package com.github.aistech.billing.utils;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides which asynchronous operations of {@link BillingHelper} may run at the same time.
+ * <ul>
+ * <li>Inventory queries are read-only and run concurrently with each other and with consumes.</li>
+ * <li>Consumes run concurrently as long as they don't share a purchase token.</li>
+ * <li>The purchase flow is exclusive: it can't start while anything else runs, and nothing
+ * starts while it runs.</li>
+ * </ul>
+ * The gate is lock-free: a single counter holds the number of shared operations (queries and
+ * consumes), {@link #EXCLUSIVE} while the purchase flow runs, or {@link #CLOSED} once the
+ * helper is disposed of, and the tokens being consumed are claimed in a concurrent map. Since
+ * closing and admitting both go through that counter, nothing is admitted once
+ * {@link #close()} has succeeded.
+ */
+final class AsyncOperationGate {
+
+    private static final int EXCLUSIVE = -1;
+    private static final int CLOSED = Integer.MIN_VALUE;
+
+    private final AtomicInteger mState = new AtomicInteger(0);
+    private final ConcurrentHashMap<String, Object> mConsumingTokens = new ConcurrentHashMap<String, Object>();
+
+    // (for logging/debugging) the operation holding the gate exclusively
+    private volatile String mExclusiveOperation = "";
+
+    /**
+     * Admits a read-only operation.
+     *
+     * @throws BillingHelper.BillingAsyncInProgressException if the purchase flow is in progress.
+     * @throws IllegalStateException                         if the gate is closed.
+     */
+    void enterShared(String operation) throws BillingHelper.BillingAsyncInProgressException {
+        while (true) {
+            int state = mState.get();
+            if (state == CLOSED) throw closed(operation);
+            if (state == EXCLUSIVE) {
+                throw new BillingHelper.BillingAsyncInProgressException("Can't start async operation (" +
+                        operation + ") because another async operation (" + mExclusiveOperation +
+                        ") is in progress.");
+            }
+            if (mState.compareAndSet(state, state + 1)) return;
+        }
+    }
+
+    void exitShared() {
+        mState.decrementAndGet();
+    }
+
+    /**
+     * Admits a consume of the given tokens. Fails without claiming anything if one of the
+     * tokens is already being consumed by another operation.
+     *
+     * @return the ticket to pass to {@link #exitConsume} once the consume finishes.
+     * @throws BillingHelper.BillingAsyncInProgressException if the purchase flow is in progress
+     *                                                       or one of the tokens is being consumed.
+     * @throws IllegalStateException                         if the gate is closed.
+     */
+    Object enterConsume(String operation, Collection<String> tokens) throws BillingHelper.BillingAsyncInProgressException {
+        enterShared(operation);
+        Object ticket = new Object();
+        for (String token : tokens) {
+            if (token == null) continue;
+            Object owner = mConsumingTokens.putIfAbsent(token, ticket);
+            if (owner != null && owner != ticket) {
+                releaseTokens(ticket, tokens);
+                exitShared();
+                throw new BillingHelper.BillingAsyncInProgressException("Can't start async operation (" +
+                        operation + ") because the purchase token " + token + " is already being consumed.");
+            }
+        }
+        return ticket;
+    }
+
+    void exitConsume(Object ticket, Collection<String> tokens) {
+        releaseTokens(ticket, tokens);
+        exitShared();
+    }
+
+    private void releaseTokens(Object ticket, Collection<String> tokens) {
+        for (String token : tokens) {
+            // Only removes the tokens this ticket claimed.
+            if (token != null) mConsumingTokens.remove(token, ticket);
+        }
+    }
+
+    /**
+     * Admits an operation that must run alone.
+     *
+     * @throws BillingHelper.BillingAsyncInProgressException if any other operation is in progress.
+     * @throws IllegalStateException                         if the gate is closed.
+     */
+    void enterExclusive(String operation) throws BillingHelper.BillingAsyncInProgressException {
+        if (!mState.compareAndSet(0, EXCLUSIVE)) {
+            if (mState.get() == CLOSED) throw closed(operation);
+            throw new BillingHelper.BillingAsyncInProgressException("Can't start async operation (" +
+                    operation + ") because another async operation (" + describe() + ") is in progress.");
+        }
+        mExclusiveOperation = operation;
+    }
+
+    /**
+     * Ends the exclusive operation, if there is one.
+     */
+    void exitExclusive() {
+        if (mState.get() == EXCLUSIVE) {
+            mExclusiveOperation = "";
+            mState.compareAndSet(EXCLUSIVE, 0);
+        }
+    }
+
+    /**
+     * Closes the gate if no operation is in progress: from then on, every operation is refused.
+     *
+     * @return whether the gate is closed, false if an operation is in progress.
+     */
+    boolean close() {
+        while (true) {
+            int state = mState.get();
+            if (state == CLOSED) return true;
+            if (state != 0) return false;
+            if (mState.compareAndSet(0, CLOSED)) return true;
+        }
+    }
+
+    boolean isClosed() {
+        return mState.get() == CLOSED;
+    }
+
+    private static IllegalStateException closed(String operation) {
+        return new IllegalStateException("Can't start async operation (" + operation +
+                ") because BillingHelper was disposed of.");
+    }
+
+    /**
+     * Describes what is in progress, for logging and error messages.
+     */
+    String describe() {
+        int state = mState.get();
+        if (state == CLOSED) return "disposed";
+        if (state == EXCLUSIVE) return mExclusiveOperation;
+        if (state == 0) return "";
+        return state + " operation(s), consuming " + mConsumingTokens.size() + " token(s)";
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.model.BillingPurchase;
+import com.github.aistech.billing.model.BillingResult;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Consumes a batch of purchases with a bounded number of consumePurchase calls in flight.
+ * <p>
+ * The calling thread and up to {@code maxConcurrent - 1} workers on the {@link BillingExecutor}
+ * take the purchases in turn. Each purchase is consumed independently: a failed consume doesn't stop the others.
+ * Every result is reported as soon as it is known, and all of them are returned in the order
+ * of the purchases.
+ */
+final class BatchConsumer {
+
+    static final int DEFAULT_MAX_CONCURRENT = 4;
+
+    /**
+     * Consumes one purchase, see {@link BillingHelper#consumeForResult(BillingPurchase)}.
+     */
+    interface PurchaseConsumer {
+        BillingResult consume(BillingPurchase purchase);
+    }
+
+    /**
+     * Receives the result of each purchase as soon as it is consumed, on the consuming thread.
+     */
+    interface ItemCallback {
+        void onItemConsumed(int index, BillingResult result);
+    }
+
+    private final PurchaseConsumer mConsumer;
+    private final BillingExecutor mExecutor;
+    private final Tracing mTracing;
+    private volatile int mMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+
+    /**
+     * @param tracing Where to trace the workers, or null.
+     */
+    BatchConsumer(PurchaseConsumer consumer, BillingExecutor executor, Tracing tracing) {
+        mConsumer = consumer;
+        mExecutor = executor;
+        mTracing = tracing;
+    }
+
+    void setMaxConcurrent(int maxConcurrent) {
+        if (maxConcurrent < 1) throw new IllegalArgumentException("maxConcurrent must be at least 1.");
+        mMaxConcurrent = maxConcurrent;
+    }
+
+    int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /**
+     * Consumes all the purchases.
+     *
+     * @param callback Notified of each result as it comes, or null.
+     * @return the results, in the order of the purchases.
+     */
+    List<BillingResult> consume(List<BillingPurchase> purchases, ItemCallback callback) {
+        Batch batch = new Batch(purchases, callback);
+        int workers = Math.min(mMaxConcurrent, purchases.size()) - 1;
+        batch.runWithWorkers(mExecutor, workers, mTracing, "consumeWorker");
+
+        if (batch.mError != null) {
+            throw batch.mError;
+        }
+        List<BillingResult> results = new ArrayList<BillingResult>(purchases.size());
+        for (int i = 0; i < purchases.size(); i++) {
+            results.add(batch.mResults.get(i));
+        }
+        return results;
+    }
+
+    /**
+     * The purchases of one batch, taken in turn by every thread running it.
+     */
+    private final class Batch extends ForkedWork {
+        final List<BillingPurchase> mPurchases;
+        final ItemCallback mCallback;
+        final AtomicReferenceArray<BillingResult> mResults;
+        final AtomicInteger mNext = new AtomicInteger(0);
+        volatile RuntimeException mError;
+
+        Batch(List<BillingPurchase> purchases, ItemCallback callback) {
+            mPurchases = purchases;
+            mCallback = callback;
+            mResults = new AtomicReferenceArray<BillingResult>(purchases.size());
+        }
+
+        @Override
+        public void run() {
+            while (mError == null) {
+                int index = mNext.getAndIncrement();
+                if (index >= mPurchases.size()) return;
+                BillingPurchase purchase = mPurchases.get(index);
+                BillingResult result;
+                try {
+                    result = mConsumer.consume(purchase);
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+                mResults.set(index, result);
+                if (mCallback != null) mCallback.onItemConsumed(index, result);
+            }
+        }
+
+        private synchronized void fail(RuntimeException e) {
+            if (mError == null) mError = e;
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.aistech.billing.utils;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the background work of {@link BillingHelper}'s asynchronous operations and delivers
+ * their callbacks.
+ * <p>
+ * The helper also runs the workers of its fan-outs here (purchase verification, getSkuDetails
+ * packs and batch consumes), so the pool bounds all of its threads. Those fan-outs keep going
+ * on the calling thread when every thread is busy.
+ * <p>
+ * Work runs on a bounded pool of named daemon threads, which are created on demand and
+ * released after being idle for a while. Callbacks are handed to a {@link CallbackDispatcher},
+ * by default one posting to the main thread.
+ * <p>
+ * An executor belongs to the {@link BillingHelper} it is given to, and is shut down when
+ * that helper is disposed.
+ */
+public class BillingExecutor {
+
+    public static final int DEFAULT_MAX_THREADS = 4;
+    public static final String DEFAULT_THREAD_NAME = "BillingHelper";
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    private final ThreadPoolExecutor executor;
+    private final CallbackDispatcher dispatcher;
+
+    /**
+     * Creates an executor with {@link #DEFAULT_MAX_THREADS} threads delivering callbacks
+     * on the main thread.
+     */
+    public BillingExecutor() {
+        this(DEFAULT_MAX_THREADS, DEFAULT_THREAD_NAME, null);
+    }
+
+    /**
+     * @param maxThreads The maximum number of background threads. Extra work waits in a queue.
+     * @param threadName The prefix for the name of the background threads.
+     * @param dispatcher Where to deliver callbacks; if null, they are posted to the main thread.
+     */
+    public BillingExecutor(int maxThreads, final String threadName, CallbackDispatcher dispatcher) {
+        if (maxThreads < 1) throw new IllegalArgumentException("maxThreads must be at least 1.");
+
+        this.dispatcher = dispatcher != null ? dispatcher : new HandlerDispatcher(new Handler(Looper.getMainLooper()));
+        this.executor = new ThreadPoolExecutor(maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger(1);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, threadName + " #" + count.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Runs the given work on one of the background threads.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if this executor was shut down.
+     */
+    public void execute(Runnable work) {
+        executor.execute(work);
+    }
+
+    /**
+     * Delivers the given callback through the {@link CallbackDispatcher}.
+     */
+    public void dispatch(Runnable callback) {
+        dispatcher.dispatch(callback);
+    }
+
+    /**
+     * Stops accepting work. Work already started or queued still runs.
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    public boolean isShutdown() {
+        return executor.isShutdown();
+    }
+
+    /* Dispatchers */
+
+    /**
+     * Delivers the callbacks of asynchronous operations to the thread the app expects them on.
+     */
+    public interface CallbackDispatcher {
+        void dispatch(Runnable callback);
+    }
+
+    /**
+     * {@link CallbackDispatcher} that posts callbacks to a {@link Handler}.
+     */
+    public static class HandlerDispatcher implements CallbackDispatcher {
+
+        private final Handler handler;
+
+        public HandlerDispatcher(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void dispatch(Runnable callback) {
+            handler.post(callback);
+        }
+    }
+
+    /**
+     * {@link CallbackDispatcher} that runs callbacks right away on the background thread.
+     */
+    public static class ImmediateDispatcher implements CallbackDispatcher {
+
+        @Override
+        public void dispatch(Runnable callback) {
+            callback.run();
+        }
+    }
+}
@@ -24,21 +24,34 @@ import android.content.IntentSender.SendIntentException;
 import android.content.ServiceConnection;
 import android.content.pm.ResolveInfo;
 import android.os.Bundle;
-import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.text.TextUtils;
-import android.util.Log;
 
 import com.android.vending.billing.IInAppBillingService;
 
 import org.json.JSONException;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.github.aistech.billing.exceptions.BillingException;
+import com.github.aistech.billing.metrics.BillingMetrics;
+import com.github.aistech.billing.metrics.BillingTracer;
 import com.github.aistech.billing.model.BillingInventory;
+import com.github.aistech.billing.model.BillingOutcome;
 import com.github.aistech.billing.model.BillingProduct;
 import com.github.aistech.billing.model.BillingPurchase;
 import com.github.aistech.billing.model.BillingResult;
@@ -66,20 +79,27 @@ import com.github.aistech.billing.model.BillingResult;
  * the object on an Activity's onCreate method, then the recommended
  * place to dispose of it is the Activity's onDestroy method. It is invalid to
  * dispose the object while an asynchronous operation is in progress. You can
- * call {@link #disposeWhenFinished()} to ensure that any in-progress operation
- * completes before the object is disposed.
+ * call {@link #disposeWhenFinished()} to ensure that all in-progress operations
+ * complete before the object is disposed.
  * <p>
  * A note about threading: When using this object from a background thread, you may
  * call the blocking versions of methods; when using from a UI thread, call
  * only the asynchronous versions and handle the results via callbacks.
- * Also, notice that you can only call one asynchronous operation at a time;
- * attempting to start a second asynchronous operation while the first one
- * has not yet completed will result in an exception being thrown.
+ * Also, notice that inventory queries can run at the same time as each other and as
+ * consumes, and consumes can run at the same time as long as they don't consume the
+ * same purchase. The purchase flow, however, runs alone: starting it while another
+ * asynchronous operation is in progress, or starting anything while it is in progress,
+ * will result in an exception being thrown.
  */
 public class BillingHelper {
-    // Is debug logging enabled?
-    boolean mDebugLog = false;
-    String mDebugTag = "BillingHelper";
+    // Debug logging and capture of the recent events
+    final BillingLog mLog = new BillingLog("BillingHelper");
+
+    // Receives the timings of the service calls, or null
+    volatile BillingMetrics mMetrics;
+
+    // Spans of the operations, sent to the tracer if one is set
+    final Tracing mTracing = new Tracing();
 
     // Is setup done?
     boolean mSetupDone = false;
@@ -87,8 +107,8 @@ public class BillingHelper {
     // Has this object been disposed of? (If so, we should ignore callbacks, etc)
     boolean mDisposed = false;
 
-    // Do we need to dispose this object after an in-progress asynchronous operation?
-    boolean mDisposeAfterAsync = false;
+    // Do we need to dispose this object after the in-progress asynchronous operations?
+    volatile boolean mDisposeAfterAsync = false;
 
     // Are subscriptions supported?
     boolean mSubscriptionsSupported = false;
@@ -96,16 +116,12 @@ public class BillingHelper {
     // Is subscription update supported?
     boolean mSubscriptionUpdateSupported = false;
 
-    // Is an asynchronous operation in progress?
-    // (only one at a time can be in progress)
-    boolean mAsyncInProgress = false;
+    // Which asynchronous operations are in progress?
+    // (queries and consumes of different tokens can run together, the purchase flow runs alone)
+    final AsyncOperationGate mAsyncGate = new AsyncOperationGate();
 
-    // Ensure atomic access to mAsyncInProgress and mDisposeAfterAsync.
-    private final Object mAsyncInProgressLock = new Object();
-
-    // (for logging/debugging)
-    // if mAsyncInProgress == true, what asynchronous operation is in progress?
-    String mAsyncOperation = "";
+    // Ensure dispose() runs once even when several operations finish at the same time.
+    private final Object mDisposeLock = new Object();
 
     // Context we were passed during initialization
     Context mContext;
@@ -123,6 +139,28 @@ public class BillingHelper {
     // Public key for verifying signature, in base64 encoding
     String mSignatureBase64 = null;
 
+    // Verifier holding the parsed mSignatureBase64, reused for every purchase; it remembers
+    // the purchases it verified, so refreshes skip the signature check of unchanged ones
+    PurchaseVerifier mPurchaseVerifier;
+
+    // Verifies the pages returned by getPurchases in parallel
+    PurchaseVerificationStage mVerificationStage;
+
+    // Whether purchases and products only scan their sku and token up front
+    volatile boolean mLazyModelParsing = true;
+
+    // Runs asynchronous operations and delivers their callbacks
+    BillingExecutor mExecutor;
+
+    // Cache of SKU details, if enabled
+    SkuDetailsCache mSkuDetailsCache;
+
+    // Sends the getSkuDetails packs concurrently
+    SkuDetailsFetcher mSkuDetailsFetcher;
+
+    // Consumes the purchases of a batch concurrently
+    BatchConsumer mBatchConsumer;
+
     // Billing response codes
     public static final int BILLING_RESPONSE_RESULT_OK = 0;
     public static final int BILLING_RESPONSE_RESULT_USER_CANCELED = 1;
@@ -148,6 +186,33 @@ public class BillingHelper {
     public static final int IABHELPER_INVALID_CONSUMPTION = -1010;
     public static final int IABHELPER_SUBSCRIPTION_UPDATE_NOT_AVAILABLE = -1011;
 
+    // Descriptions of the response codes, indexed by code and by IABHELPER_ERROR_BASE - code
+    private static final String[] IAB_MSGS = {"0:OK", "1:User Canceled", "2:Unknown",
+            "3:Billing Unavailable", "4:Item unavailable",
+            "5:Developer Error", "6:Error", "7:Item Already Owned",
+            "8:Item not owned"};
+    private static final String[] IABHELPER_MSGS = {"0:OK", "-1001:Remote exception during initialization",
+            "-1002:Bad response received",
+            "-1003:BillingPurchase signature verification failed",
+            "-1004:Send intent failed",
+            "-1005:User cancelled",
+            "-1006:Unknown purchase response",
+            "-1007:Missing token",
+            "-1008:Unknown error",
+            "-1009:Subscriptions not available",
+            "-1010:Invalid consumption attempt"};
+
+    // Results whose message never changes, shared by every operation reporting them
+    private static final BillingResult RESULT_SETUP_SUCCESSFUL = new BillingResult(BILLING_RESPONSE_RESULT_OK,
+            "Setup successful.");
+    private static final BillingResult RESULT_PURCHASE_SUCCESSFUL = new BillingResult(BILLING_RESPONSE_RESULT_OK,
+            "Success");
+    private static final BillingResult RESULT_USER_CANCELLED = new BillingResult(IABHELPER_USER_CANCELLED,
+            "User canceled.");
+    private static final BillingResult RESULT_INVENTORY_REFRESHED = new BillingResult(BILLING_RESPONSE_RESULT_OK,
+            "BillingInventory refresh successful.");
+    static final String SUCCESSFUL_CONSUME = "Successful consume of sku ";
+
     // Keys for the responses from InAppBillingService
     public static final String RESPONSE_CODE = "RESPONSE_CODE";
     public static final String RESPONSE_GET_SKU_DETAILS_LIST = "DETAILS_LIST";
@@ -177,10 +242,46 @@ public class BillingHelper {
      *                        This is used for verification of purchase signatures. You can find your app's base64-encoded
      *                        public key in your application's page on Google Play Developer Console. Note that this
      *                        is NOT your "developer public key".
+     * @throws IllegalArgumentException if base64PublicKey is not a valid public key.
      */
     public BillingHelper(Context ctx, String base64PublicKey) {
+        this(ctx, base64PublicKey, null);
+    }
+
+    /**
+     * Same as {@link #BillingHelper(Context, String)}, but running asynchronous operations on
+     * the given executor. The helper takes ownership of it and shuts it down on {@link #dispose}.
+     *
+     * @param executor The executor for asynchronous operations, or null to use a default
+     *                 {@link BillingExecutor}.
+     */
+    public BillingHelper(Context ctx, String base64PublicKey, BillingExecutor executor) {
+        this(ctx, base64PublicKey, executor, null);
+    }
+
+    /**
+     * Same as {@link #BillingHelper(Context, String, BillingExecutor)}, remembering the verified
+     * purchases in the given cache.
+     *
+     * @param verificationCache The cache of verified purchases, or null to use one of
+     *                          {@link VerifiedPurchaseCache#DEFAULT_MAX_SIZE} entries.
+     */
+    public BillingHelper(Context ctx, String base64PublicKey, BillingExecutor executor,
+                         VerifiedPurchaseCache verificationCache) {
         mContext = ctx.getApplicationContext();
         mSignatureBase64 = base64PublicKey;
+        mExecutor = executor != null ? executor : new BillingExecutor();
+        mPurchaseVerifier = new PurchaseVerifier(base64PublicKey,
+                verificationCache != null ? verificationCache : new VerifiedPurchaseCache());
+        mVerificationStage = new PurchaseVerificationStage(mPurchaseVerifier, mExecutor);
+        mVerificationStage.setTracing(mTracing);
+        mSkuDetailsFetcher = new SkuDetailsFetcher(this);
+        mBatchConsumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                return consumeForResult(purchase).getResult();
+            }
+        }, mExecutor, mTracing);
         logDebug("IAB helper created.");
     }
 
@@ -189,13 +290,110 @@ public class BillingHelper {
      */
     public void enableDebugLogging(boolean enable, String tag) {
         checkNotDisposed();
-        mDebugLog = enable;
-        mDebugTag = tag;
+        mLog.setDebug(enable);
+        mLog.setTag(tag);
     }
 
     public void enableDebugLogging(boolean enable) {
         checkNotDisposed();
-        mDebugLog = enable;
+        mLog.setDebug(enable);
+    }
+
+    /**
+     * Keeps the last capacity billing events (debug messages included, even with debug logging
+     * disabled) in memory, to be dumped with {@link #dumpRecentEvents()} when something goes
+     * wrong. Events are only formatted when dumped, so capture is cheap enough to leave on in
+     * production. Pass 0 to disable it, which is the default.
+     */
+    public void enableEventCapture(int capacity) {
+        checkNotDisposed();
+        mLog.setCapacity(capacity);
+    }
+
+    /**
+     * Returns the captured events, oldest first. Empty if event capture is disabled.
+     */
+    public List<String> getRecentEvents() {
+        return mLog.getRecentEvents();
+    }
+
+    /**
+     * Writes the captured events to LogCat, oldest first.
+     */
+    public void dumpRecentEvents() {
+        mLog.dumpRecentEvents();
+    }
+
+    /**
+     * Enables caching of SKU details: inventory queries only ask the billing service for the
+     * SKUs missing from the cache or expired. Pass null to disable it.
+     */
+    public void setSkuDetailsCache(SkuDetailsCache cache) {
+        checkNotDisposed();
+        mSkuDetailsCache = cache;
+    }
+
+    /**
+     * Sets how many getSkuDetails calls (packs of 20 SKUs) an inventory query may have in
+     * flight at the same time. Defaults to 4; 1 sends the packs one after another. The calls
+     * beyond the calling thread's also need free threads on the {@link BillingExecutor}.
+     */
+    public void setMaxSkuDetailsInFlight(int maxInFlight) {
+        checkNotDisposed();
+        mSkuDetailsFetcher.setMaxInFlight(maxInFlight);
+    }
+
+    /**
+     * Sets how many consumePurchase calls a batch consume may have in flight at the same
+     * time. Defaults to 4; 1 consumes the purchases one after another. The calls beyond the
+     * calling thread's also need free threads on the {@link BillingExecutor}.
+     */
+    public void setMaxConcurrentConsumes(int maxConcurrent) {
+        checkNotDisposed();
+        mBatchConsumer.setMaxConcurrent(maxConcurrent);
+    }
+
+    /**
+     * Sets whether the purchases and products this helper creates are parsed lazily: only
+     * their sku and token are read up front, and the other fields on first access. Enabled by
+     * default; disable it to get every field parsed before the purchases are delivered.
+     */
+    public void setLazyModelParsing(boolean lazy) {
+        checkNotDisposed();
+        mLazyModelParsing = lazy;
+        mVerificationStage.setLazyParsing(lazy);
+    }
+
+    /**
+     * Sets the metrics to notify around every call to the billing service, and every signature
+     * verification and JSON parsing. Pass null, the default, to measure nothing.
+     *
+     * @see com.github.aistech.billing.metrics.DefaultBillingMetrics
+     */
+    public void setMetrics(BillingMetrics metrics) {
+        checkNotDisposed();
+        mMetrics = metrics;
+        mVerificationStage.setMetrics(metrics);
+    }
+
+    /**
+     * Sets the tracer to receive the spans of the operations of this helper: setup, inventory
+     * queries, purchase flows and consumptions, down to each service call, verification and
+     * listener dispatch. Pass null, the default, to trace nothing.
+     *
+     * @see com.github.aistech.billing.metrics.TraceRecorder
+     */
+    public void setTracer(BillingTracer tracer) {
+        checkNotDisposed();
+        mTracing.setTracer(tracer);
+    }
+
+    /**
+     * Returns the cache of purchases whose signature was already verified, with its hit and
+     * miss counts. Its entries can be cleared, for example when the user signs out.
+     */
+    public VerifiedPurchaseCache getVerificationCache() {
+        return mPurchaseVerifier.getVerificationCache();
     }
 
     /**
@@ -225,7 +423,12 @@ public class BillingHelper {
 
         // Connection to IAB service
         logDebug("Starting in-app billing setup.");
+        final BillingTracer.Span setupSpan = mTracing.startDetached("startSetup");
+        final BillingTracer.Span bindSpan = mTracing.startDetached("bindService", setupSpan);
         mServiceConn = new ServiceConnection() {
+            // Ended on the first connection
+            private boolean mSpansEnded = setupSpan == null;
+
             @Override
             public void onServiceDisconnected(ComponentName name) {
                 logDebug("Billing service disconnected.");
@@ -234,6 +437,21 @@ public class BillingHelper {
 
             @Override
             public void onServiceConnected(ComponentName name, IBinder service) {
+                if (mSpansEnded) {
+                    connected(service);
+                    return;
+                }
+                mSpansEnded = true;
+                bindSpan.end();
+                Tracing.Scope scope = mTracing.resume(setupSpan);
+                try {
+                    connected(service);
+                } finally {
+                    Tracing.end(scope);
+                }
+            }
+
+            private void connected(IBinder service) {
                 if (mDisposed) return;
                 logDebug("Billing service connected.");
                 mService = IInAppBillingService.Stub.asInterface(service);
@@ -242,7 +460,7 @@ public class BillingHelper {
                     logDebug("Checking for in-app billing 3 support.");
 
                     // check for in-app billing v3 support
-                    int response = mService.isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
+                    int response = isBillingSupported(3, packageName, ITEM_TYPE_INAPP);
                     if (response != BILLING_RESPONSE_RESULT_OK) {
                         if (listener != null)
                             listener.onIabSetupFinished(new BillingResult(response,
@@ -253,12 +471,12 @@ public class BillingHelper {
                         mSubscriptionUpdateSupported = false;
                         return;
                     } else {
-                        logDebug("In-app billing version 3 supported for " + packageName);
+                        logDebug("In-app billing version 3 supported for {}", packageName);
                     }
 
                     // Check for v5 subscriptions support. This is needed for
                     // getBuyIntentToReplaceSku which allows for subscription update
-                    response = mService.isBillingSupported(5, packageName, ITEM_TYPE_SUBS);
+                    response = isBillingSupported(5, packageName, ITEM_TYPE_SUBS);
                     if (response == BILLING_RESPONSE_RESULT_OK) {
                         logDebug("Subscription re-signup AVAILABLE.");
                         mSubscriptionUpdateSupported = true;
@@ -271,12 +489,12 @@ public class BillingHelper {
                         mSubscriptionsSupported = true;
                     } else {
                         // check for v3 subscriptions support
-                        response = mService.isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
+                        response = isBillingSupported(3, packageName, ITEM_TYPE_SUBS);
                         if (response == BILLING_RESPONSE_RESULT_OK) {
                             logDebug("Subscriptions AVAILABLE.");
                             mSubscriptionsSupported = true;
                         } else {
-                            logDebug("Subscriptions NOT AVAILABLE. Response: " + response);
+                            logDebug("Subscriptions NOT AVAILABLE. Response: {}", response);
                             mSubscriptionsSupported = false;
                             mSubscriptionUpdateSupported = false;
                         }
@@ -293,7 +511,7 @@ public class BillingHelper {
                 }
 
                 if (listener != null) {
-                    listener.onIabSetupFinished(new BillingResult(BILLING_RESPONSE_RESULT_OK, "Setup successful."));
+                    listener.onIabSetupFinished(RESULT_SETUP_SUCCESSFUL);
                 }
             }
         };
@@ -306,6 +524,11 @@ public class BillingHelper {
             mContext.bindService(serviceIntent, mServiceConn, Context.BIND_AUTO_CREATE);
         } else {
             // no service available to handle that Intent
+            if (setupSpan != null) {
+                bindSpan.end();
+                setupSpan.setTag("response", BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE);
+                setupSpan.end();
+            }
             if (listener != null) {
                 listener.onIabSetupFinished(
                         new BillingResult(BILLING_RESPONSE_RESULT_BILLING_UNAVAILABLE,
@@ -321,23 +544,25 @@ public class BillingHelper {
      * disposed of, it can't be used again.
      */
     public void dispose() throws BillingAsyncInProgressException {
-        synchronized (mAsyncInProgressLock) {
-            if (mAsyncInProgress) {
+        synchronized (mDisposeLock) {
+            // Closing refuses every later operation, so none can start while shutting down.
+            if (!mAsyncGate.close()) {
                 throw new BillingAsyncInProgressException("Can't dispose because an async operation " +
-                        "(" + mAsyncOperation + ") is in progress.");
+                        "(" + mAsyncGate.describe() + ") is in progress.");
             }
+            logDebug("Disposing.");
+            mSetupDone = false;
+            if (mServiceConn != null) {
+                logDebug("Unbinding from service.");
+                if (mContext != null) mContext.unbindService(mServiceConn);
+            }
+            mDisposed = true;
+            mContext = null;
+            mServiceConn = null;
+            mService = null;
+            mPurchaseListener = null;
+            mExecutor.shutdown();
         }
-        logDebug("Disposing.");
-        mSetupDone = false;
-        if (mServiceConn != null) {
-            logDebug("Unbinding from service.");
-            if (mContext != null) mContext.unbindService(mServiceConn);
-        }
-        mDisposed = true;
-        mContext = null;
-        mServiceConn = null;
-        mService = null;
-        mPurchaseListener = null;
     }
 
     /**
@@ -345,18 +570,12 @@ public class BillingHelper {
      * method will queue the dispose to occur after the operation has finished.
      */
     public void disposeWhenFinished() {
-        synchronized (mAsyncInProgressLock) {
-            if (mAsyncInProgress) {
-                logDebug("Will dispose after async operation finishes.");
-                mDisposeAfterAsync = true;
-            } else {
-                try {
-                    dispose();
-                } catch (BillingAsyncInProgressException e) {
-                    // Should never be thrown, because we call dispose() only after checking that
-                    // there's not already an async operation in progress.
-                }
-            }
+        // Flag first, so an operation finishing right now sees it and disposes instead of us.
+        mDisposeAfterAsync = true;
+        try {
+            dispose();
+        } catch (BillingAsyncInProgressException e) {
+            logDebug("Will dispose after async operations finish.");
         }
     }
 
@@ -441,6 +660,18 @@ public class BillingHelper {
     public void launchPurchaseFlow(Activity act, String sku, String itemType, List<String> oldSkus,
                                    int requestCode, OnPurchaseFinishedListener listener, String extraData)
             throws BillingAsyncInProgressException {
+        Tracing.Scope span = mTracing.start("launchPurchaseFlow");
+        try {
+            Tracing.tag(span, "sku", sku);
+            startPurchaseFlow(act, sku, itemType, oldSkus, requestCode, listener, extraData);
+        } finally {
+            Tracing.end(span);
+        }
+    }
+
+    private void startPurchaseFlow(Activity act, String sku, String itemType, List<String> oldSkus,
+                                   int requestCode, OnPurchaseFinishedListener listener, String extraData)
+            throws BillingAsyncInProgressException {
         checkNotDisposed();
         checkSetupDone("launchPurchaseFlow");
         flagStartAsync("launchPurchaseFlow");
@@ -455,12 +686,22 @@ public class BillingHelper {
         }
 
         try {
-            logDebug("Constructing buy intent for " + sku + ", item type: " + itemType);
+            logDebug("Constructing buy intent for {}, item type: {}", sku, itemType);
             Bundle buyIntentBundle;
+            BillingMetrics.Operation operation = BillingMetrics.Operation.GET_BUY_INTENT;
+            long start = metricsStart();
             if (oldSkus == null || oldSkus.isEmpty()) {
                 // Purchasing a new item or subscription re-signup
-                buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType,
-                        extraData);
+                Tracing.Scope span = mTracing.start("getBuyIntent");
+                try {
+                    buyIntentBundle = mService.getBuyIntent(3, mContext.getPackageName(), sku, itemType,
+                            extraData);
+                } catch (RemoteException e) {
+                    recordMetric(operation, IABHELPER_REMOTE_EXCEPTION, start, 0);
+                    throw e;
+                } finally {
+                    Tracing.end(span);
+                }
             } else {
                 // Subscription upgrade/downgrade
                 if (!mSubscriptionUpdateSupported) {
@@ -470,12 +711,22 @@ public class BillingHelper {
                     if (listener != null) listener.onPurchaseFinished(r, null);
                     return;
                 }
-                buyIntentBundle = mService.getBuyIntentToReplaceSkus(5, mContext.getPackageName(),
-                        oldSkus, sku, itemType, extraData);
+                operation = BillingMetrics.Operation.GET_BUY_INTENT_TO_REPLACE_SKUS;
+                Tracing.Scope span = mTracing.start("getBuyIntentToReplaceSkus");
+                try {
+                    buyIntentBundle = mService.getBuyIntentToReplaceSkus(5, mContext.getPackageName(),
+                            oldSkus, sku, itemType, extraData);
+                } catch (RemoteException e) {
+                    recordMetric(operation, IABHELPER_REMOTE_EXCEPTION, start, 0);
+                    throw e;
+                } finally {
+                    Tracing.end(span);
+                }
             }
             int response = getResponseCodeFromBundle(buyIntentBundle);
+            recordMetric(operation, response, start, 0);
             if (response != BILLING_RESPONSE_RESULT_OK) {
-                logError("Unable to buy item, Error response: " + getResponseDesc(response));
+                logError("Unable to buy item, Error response: {}", getResponseDesc(response));
                 flagEndAsync();
                 result = new BillingResult(response, "Unable to buy item");
                 if (listener != null) listener.onPurchaseFinished(result, null);
@@ -483,7 +734,7 @@ public class BillingHelper {
             }
 
             PendingIntent pendingIntent = buyIntentBundle.getParcelable(RESPONSE_BUY_INTENT);
-            logDebug("Launching buy intent for " + sku + ". Request code: " + requestCode);
+            logDebug("Launching buy intent for {}. Request code: {}", sku, requestCode);
             mRequestCode = requestCode;
             mPurchaseListener = listener;
             mPurchasingItemType = itemType;
@@ -492,14 +743,14 @@ public class BillingHelper {
                     Integer.valueOf(0), Integer.valueOf(0),
                     Integer.valueOf(0));
         } catch (SendIntentException e) {
-            logError("SendIntentException while launching purchase flow for sku " + sku);
+            logError("SendIntentException while launching purchase flow for sku {}", sku);
             e.printStackTrace();
             flagEndAsync();
 
             result = new BillingResult(IABHELPER_SEND_INTENT_FAILED, "Failed to send intent.");
             if (listener != null) listener.onPurchaseFinished(result, null);
         } catch (RemoteException e) {
-            logError("RemoteException while launching purchase flow for sku " + sku);
+            logError("RemoteException while launching purchase flow for sku {}", sku);
             e.printStackTrace();
             flagEndAsync();
 
@@ -522,9 +773,19 @@ public class BillingHelper {
      * handle it normally.
      */
     public boolean handleActivityResult(int requestCode, int resultCode, Intent data) {
-        BillingResult result;
         if (requestCode != mRequestCode) return false;
 
+        Tracing.Scope span = mTracing.start("handleActivityResult");
+        try {
+            return handlePurchaseResult(resultCode, data);
+        } finally {
+            Tracing.end(span);
+        }
+    }
+
+    private boolean handlePurchaseResult(int resultCode, Intent data) {
+        BillingResult result;
+
         checkNotDisposed();
         checkSetupDone("handleActivityResult");
 
@@ -544,14 +805,15 @@ public class BillingHelper {
 
         if (resultCode == Activity.RESULT_OK && responseCode == BILLING_RESPONSE_RESULT_OK) {
             logDebug("Successful resultcode from purchase activity.");
-            logDebug("BillingPurchase data: " + purchaseData);
-            logDebug("Data signature: " + dataSignature);
-            logDebug("Extras: " + data.getExtras());
-            logDebug("Expected item type: " + mPurchasingItemType);
+            logDebug("BillingPurchase data: {}", purchaseData);
+            logDebug("Data signature: {}", dataSignature);
+            // getExtras() copies the Bundle, so only when it is logged
+            if (mLog.isDebugEnabled()) logDebug("Extras: {}", data.getExtras());
+            logDebug("Expected item type: {}", mPurchasingItemType);
 
             if (purchaseData == null || dataSignature == null) {
                 logError("BUG: either purchaseData or dataSignature is null.");
-                logDebug("Extras: " + data.getExtras().toString());
+                if (mLog.isDebugEnabled()) logDebug("Extras: {}", data.getExtras());
                 result = new BillingResult(IABHELPER_UNKNOWN_ERROR, "IAB returned null purchaseData or dataSignature");
                 if (mPurchaseListener != null)
                     mPurchaseListener.onPurchaseFinished(result, null);
@@ -560,12 +822,12 @@ public class BillingHelper {
 
             BillingPurchase purchase = null;
             try {
-                purchase = new BillingPurchase(mPurchasingItemType, purchaseData, dataSignature);
+                purchase = new BillingPurchase(mPurchasingItemType, purchaseData, dataSignature, mLazyModelParsing);
                 String sku = purchase.getSku();
 
                 // Verify signature
-                if (!Security.verifyPurchase(mSignatureBase64, purchaseData, dataSignature)) {
-                    logError("BillingPurchase signature verification FAILED for sku " + sku);
+                if (!verifyPurchase(purchaseData, dataSignature)) {
+                    logError("BillingPurchase signature verification FAILED for sku {}", sku);
                     result = new BillingResult(IABHELPER_VERIFICATION_FAILED, "Signature verification failed for sku " + sku);
                     if (mPurchaseListener != null)
                         mPurchaseListener.onPurchaseFinished(result, purchase);
@@ -582,22 +844,22 @@ public class BillingHelper {
             }
 
             if (mPurchaseListener != null) {
-                mPurchaseListener.onPurchaseFinished(new BillingResult(BILLING_RESPONSE_RESULT_OK, "Success"), purchase);
+                mPurchaseListener.onPurchaseFinished(RESULT_PURCHASE_SUCCESSFUL, purchase);
             }
         } else if (resultCode == Activity.RESULT_OK) {
             // result code was OK, but in-app billing response was not OK.
-            logDebug("Result code was OK but in-app billing response was not OK: " + getResponseDesc(responseCode));
+            logDebug("Result code was OK but in-app billing response was not OK: {}", getResponseDesc(responseCode));
             if (mPurchaseListener != null) {
                 result = new BillingResult(responseCode, "Problem purchashing item.");
                 mPurchaseListener.onPurchaseFinished(result, null);
             }
         } else if (resultCode == Activity.RESULT_CANCELED) {
-            logDebug("BillingPurchase canceled - Response: " + getResponseDesc(responseCode));
-            result = new BillingResult(IABHELPER_USER_CANCELLED, "User canceled.");
+            logDebug("BillingPurchase canceled - Response: {}", getResponseDesc(responseCode));
+            result = RESULT_USER_CANCELLED;
             if (mPurchaseListener != null) mPurchaseListener.onPurchaseFinished(result, null);
         } else {
-            logError("BillingPurchase failed. Result code: " + Integer.toString(resultCode)
-                    + ". Response: " + getResponseDesc(responseCode));
+            logError("BillingPurchase failed. Result code: {}. Response: {}", resultCode,
+                    getResponseDesc(responseCode));
             result = new BillingResult(IABHELPER_UNKNOWN_PURCHASE_RESPONSE, "Unknown purchase response.");
             if (mPurchaseListener != null) mPurchaseListener.onPurchaseFinished(result, null);
         }
@@ -623,42 +885,180 @@ public class BillingHelper {
      */
     public BillingInventory queryBillingInventory(boolean queryBillingProduct, List<String> moreItemSkus,
                                                   List<String> moreSubsSkus) throws BillingException {
+        return queryBillingInventory(queryBillingProduct, moreItemSkus, moreSubsSkus, false);
+    }
+
+    /**
+     * Same as {@link #queryBillingInventory(boolean, List, List)}, optionally querying in-app
+     * items and subscriptions at the same time. The result and, when both fail, the reported
+     * error are the same as when querying them one after the other.
+     *
+     * @param parallel if true and subscriptions are supported, subscriptions are queried on a
+     *                 background thread while in-app items are queried on the calling thread.
+     */
+    public BillingInventory queryBillingInventory(boolean queryBillingProduct, List<String> moreItemSkus,
+                                                  List<String> moreSubsSkus, boolean parallel) throws BillingException {
+        return valueOrThrow(queryBillingInventoryForResult(queryBillingProduct, moreItemSkus, moreSubsSkus, parallel));
+    }
+
+    /**
+     * Same as {@link #queryBillingInventory(boolean, List, List, boolean)}, reporting a failure
+     * through the returned outcome instead of throwing a BillingException.
+     *
+     * @return the outcome of the query, holding the inventory if it succeeded.
+     */
+    public BillingOutcome<BillingInventory> queryBillingInventoryForResult(boolean queryBillingProduct,
+                                                                          List<String> moreItemSkus,
+                                                                          List<String> moreSubsSkus, boolean parallel) {
+        return queryBillingInventoryForResult(queryBillingProduct, moreItemSkus, moreSubsSkus, parallel, null);
+    }
+
+    // Same as above, handing every verified page of purchases to pageListener (if not null)
+    BillingOutcome<BillingInventory> queryBillingInventoryForResult(boolean queryBillingProduct,
+                                                                   List<String> moreItemSkus,
+                                                                   List<String> moreSubsSkus, boolean parallel,
+                                                                   QueryBillingInventoryStreamListener pageListener) {
+        Tracing.Scope span = mTracing.start("queryBillingInventory");
+        try {
+            return queryInventory(queryBillingProduct, moreItemSkus, moreSubsSkus, parallel, pageListener);
+        } finally {
+            Tracing.end(span);
+        }
+    }
+
+    private BillingOutcome<BillingInventory> queryInventory(boolean queryBillingProduct, List<String> moreItemSkus,
+                                                            List<String> moreSubsSkus, boolean parallel,
+                                                            QueryBillingInventoryStreamListener pageListener) {
         checkNotDisposed();
         checkSetupDone("queryBillingInventory");
         try {
-            BillingInventory inv = new BillingInventory();
-            int r = queryPurchases(inv, ITEM_TYPE_INAPP);
+            BillingInventory.Builder inv = new BillingInventory.Builder();
+            BillingResult failure;
+            if (parallel && mSubscriptionsSupported) {
+                failure = queryItemTypesInParallel(inv, queryBillingProduct, moreItemSkus, moreSubsSkus, pageListener);
+            } else {
+                failure = queryItemType(inv, ITEM_TYPE_INAPP, queryBillingProduct, moreItemSkus, pageListener);
+
+                // if subscriptions are supported, then also query for subscriptions
+                if (failure == null && mSubscriptionsSupported) {
+                    failure = queryItemType(inv, ITEM_TYPE_SUBS, queryBillingProduct, moreSubsSkus, pageListener);
+                }
+            }
+
+            if (failure != null) return BillingOutcome.failure(failure, null);
+            return BillingOutcome.success(RESULT_INVENTORY_REFRESHED, inv.build());
+        } catch (RemoteException e) {
+            return BillingOutcome.failure(new BillingResult(IABHELPER_REMOTE_EXCEPTION,
+                    "Remote exception while refreshing inventory."), e);
+        } catch (JSONException e) {
+            return BillingOutcome.failure(new BillingResult(IABHELPER_BAD_RESPONSE,
+                    "Error parsing JSON response while refreshing inventory."), e);
+        }
+    }
+
+    // Returns the value of a successful outcome, or throws the exception for its result.
+    private static <T> T valueOrThrow(BillingOutcome<T> outcome) throws BillingException {
+        if (outcome.isSuccess()) return outcome.getValue();
+        if (outcome.getCause() != null) throw new BillingException(outcome.getResult(), outcome.getCause());
+        throw BillingException.of(outcome.getResult());
+    }
+
+    // Queries the purchases and, if asked, the SKU details of one item type into inv.
+    // Returns null on success, or the result of the failure.
+    BillingResult queryItemType(BillingInventory.Builder inv, String itemType, boolean queryBillingProduct,
+                                List<String> moreSkus, QueryBillingInventoryStreamListener pageListener)
+            throws RemoteException, JSONException {
+        Tracing.Scope span = mTracing.start("queryItemType");
+        Tracing.tag(span, "type", itemType);
+        try {
+            boolean subs = ITEM_TYPE_SUBS.equals(itemType);
+            int r = queryPurchases(inv, itemType, pageListener);
             if (r != BILLING_RESPONSE_RESULT_OK) {
-                throw new BillingException(r, "Error refreshing inventory (querying owned items).");
+                return new BillingResult(r, subs ? "Error refreshing inventory (querying owned subscriptions)."
+                        : "Error refreshing inventory (querying owned items).");
             }
 
             if (queryBillingProduct) {
-                r = queryBillingProduct(ITEM_TYPE_INAPP, inv, moreItemSkus);
+                r = queryBillingProduct(itemType, inv, moreSkus);
                 if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new BillingException(r, "Error refreshing inventory (querying prices of items).");
+                    return new BillingResult(r, subs ? "Error refreshing inventory (querying prices of subscriptions)."
+                            : "Error refreshing inventory (querying prices of items).");
                 }
             }
+            return null;
+        } finally {
+            Tracing.end(span);
+        }
+    }
 
-            // if subscriptions are supported, then also query for subscriptions
-            if (mSubscriptionsSupported) {
-                r = queryPurchases(inv, ITEM_TYPE_SUBS);
-                if (r != BILLING_RESPONSE_RESULT_OK) {
-                    throw new BillingException(r, "Error refreshing inventory (querying owned subscriptions).");
-                }
+    // Queries subscriptions on the executor while querying in-app items on the calling thread,
+    // then merges both into inv. An in-app failure takes precedence, as in the serial order.
+    private BillingResult queryItemTypesInParallel(BillingInventory.Builder inv, final boolean queryBillingProduct,
+                                                   List<String> moreItemSkus, final List<String> moreSubsSkus,
+                                                   final QueryBillingInventoryStreamListener pageListener)
+            throws RemoteException, JSONException {
+        final BillingInventory.Builder subsInv = new BillingInventory.Builder();
+        final AtomicBoolean abandoned = new AtomicBoolean(false);
+        FutureTask<BillingResult> subsTask = new FutureTask<BillingResult>(new Callable<BillingResult>() {
+            public BillingResult call() throws Exception {
+                if (abandoned.get()) return null;
+                return queryItemType(subsInv, ITEM_TYPE_SUBS, queryBillingProduct, moreSubsSkus, pageListener);
+            }
+        });
+        try {
+            mExecutor.execute(mTracing.wrap("querySubscriptions", subsTask));
+        } catch (RejectedExecutionException e) {
+            // Runs on the calling thread below.
+        }
 
-                if (queryBillingProduct) {
-                    r = queryBillingProduct(ITEM_TYPE_SUBS, inv, moreSubsSkus);
-                    if (r != BILLING_RESPONSE_RESULT_OK) {
-                        throw new BillingException(r, "Error refreshing inventory (querying prices of subscriptions).");
-                    }
+        boolean inappSucceeded = false;
+        try {
+            BillingResult failure = queryItemType(inv, ITEM_TYPE_INAPP, queryBillingProduct, moreItemSkus, pageListener);
+            inappSucceeded = failure == null;
+            if (failure != null) return failure;
+        } finally {
+            if (!inappSucceeded) abandoned.set(true);
+            // Runs the subscriptions branch here if no executor thread picked it up yet
+            // (a no-op otherwise), so a busy executor can't stall this query.
+            subsTask.run();
+            if (!inappSucceeded) {
+                // The in-app error wins; just wait for a subscriptions branch already running.
+                try {
+                    getUninterruptibly(subsTask);
+                } catch (ExecutionException ignored) {
                 }
             }
+        }
 
-            return inv;
-        } catch (RemoteException e) {
-            throw new BillingException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while refreshing inventory.", e);
-        } catch (JSONException e) {
-            throw new BillingException(IABHELPER_BAD_RESPONSE, "Error parsing JSON response while refreshing inventory.", e);
+        BillingResult subsFailure;
+        try {
+            subsFailure = getUninterruptibly(subsTask);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) throw (RemoteException) cause;
+            if (cause instanceof JSONException) throw (JSONException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new RuntimeException(cause);
+        }
+        if (subsFailure != null) return subsFailure;
+
+        inv.addAll(subsInv);
+        return null;
+    }
+
+    private static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
         }
     }
 
@@ -677,6 +1077,23 @@ public class BillingHelper {
         void onError(BillingHelper.BillingAsyncInProgressException e);
     }
 
+    /**
+     * Inventory query listener that also receives the owned purchases page by page, as soon as
+     * each page returned by the billing service is verified, before the whole inventory is
+     * ready. {@link #onQueryBillingInventoryFinished} still follows with the full inventory,
+     * signaling completion. Pass it to any {@link #queryBillingInventoryAsync} method.
+     */
+    public interface QueryBillingInventoryStreamListener extends QueryBillingInventoryFinishedListener {
+        /**
+         * Called, on the same thread as {@link #onQueryBillingInventoryFinished}, for each page
+         * of owned purchases.
+         *
+         * @param itemType  The item type of the page.
+         * @param purchases The purchases of the page that passed signature verification.
+         */
+        void onPurchasesReceived(String itemType, List<BillingPurchase> purchases);
+    }
+
 
     /**
      * Asynchronous wrapper for inventory query. This will perform an inventory
@@ -687,38 +1104,57 @@ public class BillingHelper {
      * @param queryBillingProduct as in {@link #queryBillingInventory}
      * @param moreItemSkus        as in {@link #queryBillingInventory}
      * @param moreSubsSkus        as in {@link #queryBillingInventory}
-     * @param listener            The listener to notify when the refresh operation completes.
+     * @param listener            The listener to notify when the refresh operation completes. If it is
+     *                            a {@link QueryBillingInventoryStreamListener}, it also receives
+     *                            each page of owned purchases as soon as it is verified.
      */
     public void queryBillingInventoryAsync(final boolean queryBillingProduct, final List<String> moreItemSkus,
                                            final List<String> moreSubsSkus, final QueryBillingInventoryFinishedListener listener)
             throws BillingAsyncInProgressException {
-        final Handler handler = new Handler();
+        queryBillingInventoryAsync(queryBillingProduct, moreItemSkus, moreSubsSkus, false, listener);
+    }
+
+    /**
+     * Same as {@link #queryBillingInventoryAsync(boolean, List, List, QueryBillingInventoryFinishedListener)},
+     * optionally querying in-app items and subscriptions at the same time.
+     *
+     * @param parallel as in {@link #queryBillingInventory(boolean, List, List, boolean)}
+     */
+    public void queryBillingInventoryAsync(final boolean queryBillingProduct, final List<String> moreItemSkus,
+                                           final List<String> moreSubsSkus, final boolean parallel,
+                                           final QueryBillingInventoryFinishedListener listener)
+            throws BillingAsyncInProgressException {
         checkNotDisposed();
         checkSetupDone("queryBillingInventory");
-        flagStartAsync("refresh inventory");
-        (new Thread(new Runnable() {
-            public void run() {
-                BillingResult result = new BillingResult(BILLING_RESPONSE_RESULT_OK, "BillingInventory refresh successful.");
-                BillingInventory inv = null;
-                try {
-                    inv = queryBillingInventory(queryBillingProduct, moreItemSkus, moreSubsSkus);
-                } catch (BillingException ex) {
-                    result = ex.getResult();
-                }
-
-                flagEndAsync();
+        flagStartQueryAsync("refresh inventory");
+        try {
+            mExecutor.execute(mTracing.wrap("queryBillingInventoryAsync", new Runnable() {
+                public void run() {
+                    QueryBillingInventoryStreamListener pageListener = listener instanceof QueryBillingInventoryStreamListener
+                            ? (QueryBillingInventoryStreamListener) listener : null;
+                    BillingOutcome<BillingInventory> outcome;
+                    try {
+                        outcome = queryBillingInventoryForResult(queryBillingProduct, moreItemSkus, moreSubsSkus,
+                                parallel, pageListener);
+                    } finally {
+                        flagEndQueryAsync("refresh inventory");
+                    }
 
-                final BillingResult result_f = result;
-                final BillingInventory inv_f = inv;
-                if (!mDisposed && listener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            listener.onQueryBillingInventoryFinished(result_f, inv_f);
-                        }
-                    });
+                    final BillingResult result_f = outcome.getResult();
+                    final BillingInventory inv_f = outcome.getValue();
+                    if (!mDisposed && listener != null) {
+                        mExecutor.dispatch(mTracing.wrap("onQueryBillingInventoryFinished", new Runnable() {
+                            public void run() {
+                                listener.onQueryBillingInventoryFinished(result_f, inv_f);
+                            }
+                        }));
+                    }
                 }
-            }
-        })).start();
+            }));
+        } catch (RejectedExecutionException e) {
+            flagEndQueryAsync("refresh inventory");
+            throw e;
+        }
     }
 
     public void queryBillingInventoryAsync(QueryBillingInventoryFinishedListener listener)
@@ -726,6 +1162,119 @@ public class BillingHelper {
         queryBillingInventoryAsync(false, null, null, listener);
     }
 
+    /**
+     * Inventory query listener that also receives what changed since a previous inventory.
+     * See {@link #queryPurchasesDeltaAsync}.
+     */
+    public interface QueryBillingInventoryDeltaListener extends QueryBillingInventoryFinishedListener {
+        /**
+         * Called, right before {@link #onQueryBillingInventoryFinished}, when the purchases were
+         * queried successfully.
+         *
+         * @param added   The purchases that are new or changed since the previous inventory.
+         * @param removed The purchases of the previous inventory that are no longer owned.
+         */
+        void onPurchasesChanged(List<BillingPurchase> added, List<BillingPurchase> removed);
+    }
+
+    /**
+     * Refreshes the purchases of a previous inventory incrementally. The owned purchases are
+     * queried again, but only the ones that are new or changed since that inventory, compared
+     * by their JSON and signature, are verified and parsed; the others are reused. This is
+     * much cheaper than {@link #queryBillingInventoryAsync} after a PURCHASES_UPDATED broadcast,
+     * which usually concerns a single item.
+     * <p>
+     * The new inventory keeps the SKU details of the previous one, without querying them.
+     * The listener receives the added and removed purchases, then the new inventory.
+     * This method is safe to call from a UI thread.
+     *
+     * @param current  The previous inventory, which is not modified.
+     * @param listener The listener to notify when the refresh operation completes.
+     */
+    public void queryPurchasesDeltaAsync(final BillingInventory current, final QueryBillingInventoryDeltaListener listener)
+            throws BillingAsyncInProgressException {
+        checkNotDisposed();
+        checkSetupDone("queryPurchasesDelta");
+        flagStartQueryAsync("refresh purchases");
+        try {
+            mExecutor.execute(mTracing.wrap("queryPurchasesDeltaAsync", new Runnable() {
+                public void run() {
+                    final List<BillingPurchase> added = new ArrayList<BillingPurchase>();
+                    final List<BillingPurchase> removed = new ArrayList<BillingPurchase>();
+                    BillingOutcome<BillingInventory> outcome;
+                    try {
+                        outcome = queryPurchasesDelta(current, added, removed);
+                    } finally {
+                        flagEndQueryAsync("refresh purchases");
+                    }
+
+                    final BillingResult result_f = outcome.getResult();
+                    final BillingInventory inv_f = outcome.getValue();
+                    if (!mDisposed && listener != null) {
+                        mExecutor.dispatch(mTracing.wrap("onQueryBillingInventoryFinished", new Runnable() {
+                            public void run() {
+                                if (result_f.isOk()) listener.onPurchasesChanged(added, removed);
+                                listener.onQueryBillingInventoryFinished(result_f, inv_f);
+                            }
+                        }));
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            flagEndQueryAsync("refresh purchases");
+            throw e;
+        }
+    }
+
+    // Returns an inventory with the SKU details of current and the owned purchases, reusing the
+    // unchanged purchases of current, and reports what was added and removed.
+    BillingOutcome<BillingInventory> queryPurchasesDelta(BillingInventory current, List<BillingPurchase> added,
+                                                         List<BillingPurchase> removed) {
+        checkNotDisposed();
+        checkSetupDone("queryPurchasesDelta");
+        // Starts from current for its SKU details, sharing them; its purchases are all replaced.
+        BillingInventory.Builder inv = new BillingInventory.Builder(current);
+        for (String sku : current.getAllOwnedBillingProduct()) {
+            inv.erasePurchase(sku);
+        }
+
+        Map<String, BillingPurchase> known = new HashMap<String, BillingPurchase>();
+        for (BillingPurchase purchase : current.getAllPurchases()) {
+            known.put(purchase.getOriginalJson(), purchase);
+        }
+
+        try {
+            int r = queryPurchases(inv, ITEM_TYPE_INAPP, null, known, added);
+            if (r != BILLING_RESPONSE_RESULT_OK) {
+                return BillingOutcome.failure(new BillingResult(r,
+                        "Error refreshing inventory (querying owned items)."), null);
+            }
+            if (mSubscriptionsSupported) {
+                r = queryPurchases(inv, ITEM_TYPE_SUBS, null, known, added);
+                if (r != BILLING_RESPONSE_RESULT_OK) {
+                    return BillingOutcome.failure(new BillingResult(r,
+                            "Error refreshing inventory (querying owned subscriptions)."), null);
+                }
+            }
+        } catch (RemoteException e) {
+            return BillingOutcome.failure(new BillingResult(IABHELPER_REMOTE_EXCEPTION,
+                    "Remote exception while refreshing inventory."), e);
+        } catch (JSONException e) {
+            return BillingOutcome.failure(new BillingResult(IABHELPER_BAD_RESPONSE,
+                    "Error parsing JSON response while refreshing inventory."), e);
+        }
+
+        Set<String> tokens = new HashSet<String>();
+        for (BillingPurchase purchase : inv.getAllPurchases()) {
+            tokens.add(purchase.getToken());
+        }
+        for (BillingPurchase purchase : current.getAllPurchases()) {
+            if (!tokens.contains(purchase.getToken())) removed.add(purchase);
+        }
+        logDebug("Purchases refreshed: {} added, {} removed.", added.size(), removed.size());
+        return BillingOutcome.success(RESULT_INVENTORY_REFRESHED, inv.build());
+    }
+
     /**
      * Consumes a given in-app product. Consuming can only be done on an item
      * that's owned, and as a result of consumption, the user will no longer own it.
@@ -736,33 +1285,60 @@ public class BillingHelper {
      * @throws BillingException if there is a problem during consumption.
      */
     void consume(BillingPurchase itemInfo) throws BillingException {
+        valueOrThrow(consumeForResult(itemInfo));
+    }
+
+    /**
+     * Same as {@link #consume}, reporting a failure through the returned outcome instead of
+     * throwing a BillingException. This method may block or take long to return. Do not call
+     * from the UI thread.
+     *
+     * @param itemInfo The PurchaseInfo that represents the item to consume.
+     * @return the outcome of the consumption, holding the consumed purchase if it succeeded.
+     */
+    public BillingOutcome<BillingPurchase> consumeForResult(BillingPurchase itemInfo) {
         checkNotDisposed();
         checkSetupDone("consume");
 
         if (!itemInfo.getItemType().equals(ITEM_TYPE_INAPP)) {
-            throw new BillingException(IABHELPER_INVALID_CONSUMPTION,
-                    "Items of type '" + itemInfo.getItemType() + "' can't be consumed.");
+            return BillingOutcome.failure(new BillingResult(IABHELPER_INVALID_CONSUMPTION,
+                    "Items of type '" + itemInfo.getItemType() + "' can't be consumed."), null);
         }
 
         try {
             String token = itemInfo.getToken();
             String sku = itemInfo.getSku();
             if (token == null || token.equals("")) {
-                logError("Can't consume " + sku + ". No token.");
-                throw new BillingException(IABHELPER_MISSING_TOKEN, "PurchaseInfo is missing token for sku: "
-                        + sku + " " + itemInfo);
+                logError("Can't consume {}. No token.", sku);
+                return BillingOutcome.failure(new BillingResult(IABHELPER_MISSING_TOKEN,
+                        "PurchaseInfo is missing token for sku: " + sku + " " + itemInfo), null);
             }
 
-            logDebug("Consuming sku: " + sku + ", token: " + token);
-            int response = mService.consumePurchase(3, mContext.getPackageName(), token);
+            logDebug("Consuming sku: {}, token: {}", sku, token);
+            Tracing.Scope span = mTracing.start("consumePurchase");
+            Tracing.tag(span, "sku", sku);
+            long start = metricsStart();
+            int response;
+            try {
+                response = mService.consumePurchase(3, mContext.getPackageName(), token);
+            } catch (RemoteException e) {
+                recordMetric(BillingMetrics.Operation.CONSUME_PURCHASE, IABHELPER_REMOTE_EXCEPTION, start, 0);
+                throw e;
+            } finally {
+                Tracing.end(span);
+            }
+            recordMetric(BillingMetrics.Operation.CONSUME_PURCHASE, response, start, 0);
             if (response == BILLING_RESPONSE_RESULT_OK) {
-                logDebug("Successfully consumed sku: " + sku);
+                logDebug("Successfully consumed sku: {}", sku);
+                return BillingOutcome.success(new BillingResult(BILLING_RESPONSE_RESULT_OK, SUCCESSFUL_CONSUME, sku),
+                        itemInfo);
             } else {
-                logDebug("Error consuming consuming sku " + sku + ". " + getResponseDesc(response));
-                throw new BillingException(response, "Error consuming sku " + sku);
+                logDebug("Error consuming consuming sku {}. {}", sku, getResponseDesc(response));
+                return BillingOutcome.failure(new BillingResult(response, "Error consuming sku ", sku), null);
             }
         } catch (RemoteException e) {
-            throw new BillingException(IABHELPER_REMOTE_EXCEPTION, "Remote exception while consuming. PurchaseInfo: " + itemInfo, e);
+            return BillingOutcome.failure(new BillingResult(IABHELPER_REMOTE_EXCEPTION,
+                    "Remote exception while consuming. PurchaseInfo: " + itemInfo), e);
         }
     }
 
@@ -795,6 +1371,33 @@ public class BillingHelper {
         void onConsumeMultiFinished(List<BillingPurchase> purchases, List<BillingResult> results);
     }
 
+    /**
+     * Multi-item consumption listener that also receives the result of each item as soon
+     * as it is consumed, before {@link #onConsumeMultiFinished}.
+     */
+    public interface OnConsumeItemFinishedListener extends OnConsumeMultiFinishedListener {
+        /**
+         * Called once per item, in the order the items finish consuming.
+         *
+         * @param purchase The purchase that was (or was to be) consumed.
+         * @param result   The result of its consumption.
+         */
+        void onConsumeItemFinished(BillingPurchase purchase, BillingResult result);
+    }
+
+    /**
+     * Callback that reports the progress of a multi-item consumption.
+     */
+    public interface OnConsumeProgressListener {
+        /**
+         * Called each time an item finishes consuming, successfully or not.
+         *
+         * @param completed The number of items done so far.
+         * @param total     The number of items in the batch.
+         */
+        void onConsumeProgress(int completed, int total);
+    }
+
     /**
      * Asynchronous wrapper to item consumption. Works like {@link #consume}, but
      * performs the consumption in the background and notifies completion through
@@ -809,7 +1412,7 @@ public class BillingHelper {
         checkSetupDone("consume");
         List<BillingPurchase> purchases = new ArrayList<BillingPurchase>();
         purchases.add(purchase);
-        consumeAsyncInternal(purchases, listener, null);
+        consumeAsyncInternal(purchases, listener, null, null);
     }
 
     /**
@@ -820,9 +1423,25 @@ public class BillingHelper {
      */
     public void consumeAsync(List<BillingPurchase> purchases, OnConsumeMultiFinishedListener listener)
             throws BillingAsyncInProgressException {
+        consumeAsync(purchases, listener, null);
+    }
+
+    /**
+     * Same as {@link #consumeAsync(List, OnConsumeMultiFinishedListener)}, also reporting
+     * progress. The items are consumed concurrently, with at most
+     * {@link #setMaxConcurrentConsumes} calls in flight. Pass an
+     * {@link OnConsumeItemFinishedListener} to receive each result as soon as it is known.
+     *
+     * @param purchases        The list of PurchaseInfo objects representing the purchases to consume.
+     * @param listener         The listener to notify when the consumption operation finishes.
+     * @param progressListener The listener to notify each time an item finishes, or null.
+     */
+    public void consumeAsync(List<BillingPurchase> purchases, OnConsumeMultiFinishedListener listener,
+                             OnConsumeProgressListener progressListener)
+            throws BillingAsyncInProgressException {
         checkNotDisposed();
         checkSetupDone("consume");
-        consumeAsyncInternal(purchases, null, listener);
+        consumeAsyncInternal(purchases, null, listener, progressListener);
     }
 
     /**
@@ -833,36 +1452,21 @@ public class BillingHelper {
      * It also includes the result code numerically.
      */
     public static String getResponseDesc(int code) {
-        String[] iab_msgs = ("0:OK/1:User Canceled/2:Unknown/" +
-                "3:Billing Unavailable/4:Item unavailable/" +
-                "5:Developer Error/6:Error/7:Item Already Owned/" +
-                "8:Item not owned").split("/");
-        String[] iabhelper_msgs = ("0:OK/-1001:Remote exception during initialization/" +
-                "-1002:Bad response received/" +
-                "-1003:BillingPurchase signature verification failed/" +
-                "-1004:Send intent failed/" +
-                "-1005:User cancelled/" +
-                "-1006:Unknown purchase response/" +
-                "-1007:Missing token/" +
-                "-1008:Unknown error/" +
-                "-1009:Subscriptions not available/" +
-                "-1010:Invalid consumption attempt").split("/");
-
         if (code <= IABHELPER_ERROR_BASE) {
             int index = IABHELPER_ERROR_BASE - code;
-            if (index >= 0 && index < iabhelper_msgs.length) return iabhelper_msgs[index];
+            if (index < IABHELPER_MSGS.length) return IABHELPER_MSGS[index];
             else return String.valueOf(code) + ":Unknown IAB Helper Error";
-        } else if (code < 0 || code >= iab_msgs.length)
+        } else if (code < 0 || code >= IAB_MSGS.length)
             return String.valueOf(code) + ":Unknown";
         else
-            return iab_msgs[code];
+            return IAB_MSGS[code];
     }
 
 
     // Checks that setup was done; if not, throws an exception.
     void checkSetupDone(String operation) {
         if (!mSetupDone) {
-            logError("Illegal state for operation (" + operation + "): IAB helper is not set up.");
+            logError("Illegal state for operation ({}): IAB helper is not set up.", operation);
             throw new IllegalStateException("IAB helper is not set up. Can't perform operation: " + operation);
         }
     }
@@ -877,7 +1481,7 @@ public class BillingHelper {
         else if (o instanceof Long) return (int) ((Long) o).longValue();
         else {
             logError("Unexpected type for bundle response code.");
-            logError(o.getClass().getName());
+            logError("{}", o.getClass().getName());
             throw new RuntimeException("Unexpected type for bundle response code: " + o.getClass().getName());
         }
     }
@@ -892,37 +1496,54 @@ public class BillingHelper {
         else if (o instanceof Long) return (int) ((Long) o).longValue();
         else {
             logError("Unexpected type for intent response code.");
-            logError(o.getClass().getName());
+            logError("{}", o.getClass().getName());
             throw new RuntimeException("Unexpected type for intent response code: " + o.getClass().getName());
         }
     }
 
+    // Starts the purchase flow, which can't run together with any other operation.
     void flagStartAsync(String operation) throws BillingAsyncInProgressException {
-        synchronized (mAsyncInProgressLock) {
-            if (mAsyncInProgress) {
-                throw new BillingAsyncInProgressException("Can't start async operation (" +
-                        operation + ") because another async operation (" + mAsyncOperation +
-                        ") is in progress.");
-            }
-            mAsyncOperation = operation;
-            mAsyncInProgress = true;
-            logDebug("Starting async operation: " + operation);
-        }
+        mAsyncGate.enterExclusive(operation);
+        logDebug("Starting async operation: {}", operation);
     }
 
     void flagEndAsync() {
-        synchronized (mAsyncInProgressLock) {
-            logDebug("Ending async operation: " + mAsyncOperation);
-            mAsyncOperation = "";
-            mAsyncInProgress = false;
-            if (mDisposeAfterAsync) {
-                try {
-                    dispose();
-                } catch (BillingAsyncInProgressException e) {
-                    // Should not be thrown, because we reset mAsyncInProgress immediately before
-                    // calling dispose().
-                }
-            }
+        logDebug("Ending async operation: {}", mAsyncGate.describe());
+        mAsyncGate.exitExclusive();
+        disposeIfRequested();
+    }
+
+    // Starts a read-only operation, which can run together with other queries and consumes.
+    void flagStartQueryAsync(String operation) throws BillingAsyncInProgressException {
+        mAsyncGate.enterShared(operation);
+        logDebug("Starting async operation: {}", operation);
+    }
+
+    void flagEndQueryAsync(String operation) {
+        logDebug("Ending async operation: {}", operation);
+        mAsyncGate.exitShared();
+        disposeIfRequested();
+    }
+
+    // Starts a consume, which can run together with anything but a consume of the same tokens.
+    Object flagStartConsumeAsync(String operation, List<String> tokens) throws BillingAsyncInProgressException {
+        Object ticket = mAsyncGate.enterConsume(operation, tokens);
+        logDebug("Starting async operation: {}", operation);
+        return ticket;
+    }
+
+    void flagEndConsumeAsync(String operation, Object ticket, List<String> tokens) {
+        logDebug("Ending async operation: {}", operation);
+        mAsyncGate.exitConsume(ticket, tokens);
+        disposeIfRequested();
+    }
+
+    private void disposeIfRequested() {
+        if (!mDisposeAfterAsync) return;
+        try {
+            dispose();
+        } catch (BillingAsyncInProgressException e) {
+            // Other operations are still running; the last one to finish disposes.
         }
     }
 
@@ -936,22 +1557,53 @@ public class BillingHelper {
         }
     }
 
-    int queryPurchases(BillingInventory inv, String itemType) throws JSONException, RemoteException {
+    int queryPurchases(BillingInventory.Builder inv, String itemType) throws JSONException, RemoteException {
+        return queryPurchases(inv, itemType, null);
+    }
+
+    int queryPurchases(BillingInventory.Builder inv, String itemType, QueryBillingInventoryStreamListener pageListener)
+            throws JSONException, RemoteException {
+        return queryPurchases(inv, itemType, pageListener, null, null);
+    }
+
+    /**
+     * Queries the owned purchases of an item type into inv.
+     *
+     * @param known purchases already verified, keyed by their original JSON. An owned purchase with
+     *              the same JSON and signature is reused as is, without verifying or parsing it again.
+     *              Ignored if null.
+     * @param added receives the purchases that had to be verified, i.e. not in known. Ignored if null.
+     */
+    int queryPurchases(BillingInventory.Builder inv, String itemType, QueryBillingInventoryStreamListener pageListener,
+                       Map<String, BillingPurchase> known, List<BillingPurchase> added)
+            throws JSONException, RemoteException {
         // Query purchases
-        logDebug("Querying owned items, item type: " + itemType);
-        logDebug("Package name: " + mContext.getPackageName());
+        logDebug("Querying owned items, item type: {}", itemType);
+        logDebug("Package name: {}", mContext.getPackageName());
         boolean verificationFailed = false;
         String continueToken = null;
 
         do {
-            logDebug("Calling getPurchases with continuation token: " + continueToken);
-            Bundle ownedItems = mService.getPurchases(3, mContext.getPackageName(),
-                    itemType, continueToken);
+            logDebug("Calling getPurchases with continuation token: {}", continueToken);
+            Tracing.Scope span = mTracing.start("getPurchases");
+            Tracing.tag(span, "type", itemType);
+            long start = metricsStart();
+            Bundle ownedItems;
+            try {
+                ownedItems = mService.getPurchases(3, mContext.getPackageName(), itemType, continueToken);
+            } catch (RemoteException e) {
+                recordMetric(BillingMetrics.Operation.GET_PURCHASES, IABHELPER_REMOTE_EXCEPTION, start, 0);
+                throw e;
+            } finally {
+                Tracing.end(span);
+            }
 
             int response = getResponseCodeFromBundle(ownedItems);
-            logDebug("Owned items response: " + String.valueOf(response));
+            recordMetric(BillingMetrics.Operation.GET_PURCHASES, response, start,
+                    itemCount(ownedItems, RESPONSE_INAPP_PURCHASE_DATA_LIST));
+            logDebug("Owned items response: {}", response);
             if (response != BILLING_RESPONSE_RESULT_OK) {
-                logDebug("getPurchases() failed: " + getResponseDesc(response));
+                logDebug("getPurchases() failed: {}", getResponseDesc(response));
                 return response;
             }
             if (!ownedItems.containsKey(RESPONSE_INAPP_ITEM_LIST)
@@ -968,49 +1620,134 @@ public class BillingHelper {
             ArrayList<String> signatureList = ownedItems.getStringArrayList(
                     RESPONSE_INAPP_SIGNATURE_LIST);
 
-            for (int i = 0; i < purchaseDataList.size(); ++i) {
+            // Verify and parse the whole page in parallel, then merge it in the original order
+            BillingPurchase[] verified = verifyPage(itemType, purchaseDataList, signatureList, known, added);
+            List<BillingPurchase> page = pageListener != null ? new ArrayList<BillingPurchase>(verified.length) : null;
+            for (int i = 0; i < verified.length; ++i) {
                 String purchaseData = purchaseDataList.get(i);
                 String signature = signatureList.get(i);
                 String sku = ownedSkus.get(i);
-                if (Security.verifyPurchase(mSignatureBase64, purchaseData, signature)) {
-                    logDebug("Sku is owned: " + sku);
-                    BillingPurchase purchase = new BillingPurchase(itemType, purchaseData, signature);
+                BillingPurchase purchase = verified[i];
+                if (purchase != null) {
+                    logDebug("Sku is owned: {}", sku);
 
                     if (TextUtils.isEmpty(purchase.getToken())) {
                         logWarn("BUG: empty/null token!");
-                        logDebug("BillingPurchase data: " + purchaseData);
+                        logDebug("BillingPurchase data: {}", purchaseData);
                     }
 
                     // Record ownership and token
                     inv.addPurchase(purchase);
+                    if (page != null) page.add(purchase);
                 } else {
                     logWarn("BillingPurchase signature verification **FAILED**. Not adding item.");
-                    logDebug("   BillingPurchase data: " + purchaseData);
-                    logDebug("   Signature: " + signature);
+                    logDebug("   BillingPurchase data: {}", purchaseData);
+                    logDebug("   Signature: {}", signature);
                     verificationFailed = true;
                 }
             }
 
+            if (page != null && !page.isEmpty()) {
+                dispatchPurchasesPage(pageListener, itemType, page);
+            }
+
             continueToken = ownedItems.getString(INAPP_CONTINUATION_TOKEN);
-            logDebug("Continuation token: " + continueToken);
+            logDebug("Continuation token: {}", continueToken);
         } while (!TextUtils.isEmpty(continueToken));
 
         return verificationFailed ? IABHELPER_VERIFICATION_FAILED : BILLING_RESPONSE_RESULT_OK;
     }
 
-    int queryBillingProduct(String itemType, BillingInventory inv, List<String> moreSkus)
+    // Verifies and parses a page, skipping the purchases found unchanged in known (if not null)
+    private BillingPurchase[] verifyPage(String itemType, ArrayList<String> purchaseDataList,
+                                         ArrayList<String> signatureList, Map<String, BillingPurchase> known,
+                                         List<BillingPurchase> added) throws JSONException {
+        if (known == null) {
+            BillingPurchase[] verified = verifyAll(itemType, purchaseDataList, signatureList);
+            if (added != null) {
+                for (BillingPurchase purchase : verified) {
+                    if (purchase != null) added.add(purchase);
+                }
+            }
+            return verified;
+        }
+
+        BillingPurchase[] verified = new BillingPurchase[purchaseDataList.size()];
+        List<Integer> changed = new ArrayList<Integer>();
+        for (int i = 0; i < verified.length; ++i) {
+            BillingPurchase purchase = known.get(purchaseDataList.get(i));
+            if (purchase != null && TextUtils.equals(purchase.getSignature(), signatureList.get(i))) {
+                verified[i] = purchase;
+            } else {
+                changed.add(i);
+            }
+        }
+        if (changed.isEmpty()) return verified;
+
+        logDebug("Verifying {} new or changed purchase(s) of {}.", changed.size(), verified.length);
+        List<String> changedData = new ArrayList<String>(changed.size());
+        List<String> changedSignatures = new ArrayList<String>(changed.size());
+        for (int i : changed) {
+            changedData.add(purchaseDataList.get(i));
+            changedSignatures.add(signatureList.get(i));
+        }
+        BillingPurchase[] changedVerified = verifyAll(itemType, changedData, changedSignatures);
+        for (int j = 0; j < changedVerified.length; ++j) {
+            verified[changed.get(j)] = changedVerified[j];
+            if (changedVerified[j] != null && added != null) added.add(changedVerified[j]);
+        }
+        return verified;
+    }
+
+    private BillingPurchase[] verifyAll(String itemType, List<String> purchaseDataList, List<String> signatureList)
+            throws JSONException {
+        Tracing.Scope span = mTracing.start("verifyPurchases");
+        Tracing.tag(span, "purchases", purchaseDataList.size());
+        try {
+            return mVerificationStage.verify(itemType, purchaseDataList, signatureList);
+        } finally {
+            Tracing.end(span);
+        }
+    }
+
+    private void dispatchPurchasesPage(final QueryBillingInventoryStreamListener pageListener,
+                                       final String itemType, final List<BillingPurchase> page) {
+        if (mDisposed) return;
+        mExecutor.dispatch(mTracing.wrap("onPurchasesReceived", new Runnable() {
+            public void run() {
+                pageListener.onPurchasesReceived(itemType, page);
+            }
+        }));
+    }
+
+    int queryBillingProduct(String itemType, BillingInventory.Builder inv, List<String> moreSkus)
             throws RemoteException, JSONException {
         logDebug("Querying SKU details.");
-        ArrayList<String> skuList = new ArrayList<String>();
-        skuList.addAll(inv.getAllOwnedBillingProduct(itemType));
+        Set<String> skus = new LinkedHashSet<String>(inv.getAllOwnedBillingProduct(itemType));
         if (moreSkus != null) {
-            for (String sku : moreSkus) {
-                if (!skuList.contains(sku)) {
-                    skuList.add(sku);
-                }
-            }
+            skus.addAll(moreSkus);
         }
+        ArrayList<String> skuList = new ArrayList<String>(skus);
+
+        List<String> staleSkus = new ArrayList<String>();
+        SkuDetailsCache cache = mSkuDetailsCache;
+        if (cache != null) {
+            List<String> missingSkus = cache.fill(itemType, skuList, inv, staleSkus);
+            logDebug("SKU details cache: {} cached ({} stale), {} to fetch.",
+                    skuList.size() - missingSkus.size(), staleSkus.size(), missingSkus.size());
+            skuList = new ArrayList<String>(missingSkus);
+        }
+
+        int response = querySkuDetails(itemType, skuList, inv);
+        if (response == BILLING_RESPONSE_RESULT_OK && !staleSkus.isEmpty()) {
+            revalidateSkuDetails(itemType, staleSkus);
+        }
+        return response;
+    }
 
+    // Fetches the details of the given SKUs from the service, adding them to inv (and the cache)
+    int querySkuDetails(String itemType, ArrayList<String> skuList, BillingInventory.Builder inv)
+            throws RemoteException, JSONException {
         if (skuList.size() == 0) {
             logDebug("queryPrices: nothing to do because there are no SKUs.");
             return BILLING_RESPONSE_RESULT_OK;
@@ -1036,82 +1773,254 @@ public class BillingHelper {
             packs.add(tempList);
         }
 
-        for (ArrayList<String> skuPartList : packs) {
-            Bundle querySkus = new Bundle();
-            querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuPartList);
-            Bundle skuDetails = mService.getSkuDetails(3, mContext.getPackageName(),
-                    itemType, querySkus);
-
-            if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
-                int response = getResponseCodeFromBundle(skuDetails);
-                if (response != BILLING_RESPONSE_RESULT_OK) {
-                    logDebug("getBillingProduct() failed: " + getResponseDesc(response));
-                    return response;
-                } else {
-                    logError("getBillingProduct() returned a bundle with neither an error nor a detail list.");
-                    return IABHELPER_BAD_RESPONSE;
-                }
-            }
+        // Send the packs concurrently, at most mSkuDetailsFetcher.getMaxInFlight() at a time
+        Tracing.Scope span = mTracing.start("querySkuDetails");
+        Tracing.tag(span, "skus", skuList.size());
+        try {
+            return mSkuDetailsFetcher.fetch(itemType, packs, inv);
+        } finally {
+            Tracing.end(span);
+        }
+    }
 
-            ArrayList<String> responseList = skuDetails.getStringArrayList(
-                    RESPONSE_GET_SKU_DETAILS_LIST);
+    // Fetches the details of one pack of at most 20 SKUs, adding them to products (and the cache).
+    // Called concurrently by SkuDetailsFetcher.
+    int querySkuDetailsPack(String itemType, ArrayList<String> skuPartList, List<BillingProduct> products)
+            throws RemoteException, JSONException {
+        Bundle querySkus = new Bundle();
+        querySkus.putStringArrayList(GET_SKU_DETAILS_ITEM_LIST, skuPartList);
+        Tracing.Scope span = mTracing.start("getSkuDetails");
+        Tracing.tag(span, "skus", skuPartList.size());
+        long start = metricsStart();
+        Bundle skuDetails;
+        try {
+            skuDetails = mService.getSkuDetails(3, mContext.getPackageName(), itemType, querySkus);
+        } catch (RemoteException e) {
+            recordMetric(BillingMetrics.Operation.GET_SKU_DETAILS, IABHELPER_REMOTE_EXCEPTION, start, 0);
+            throw e;
+        } finally {
+            Tracing.end(span);
+        }
+        if (start != 0) {
+            recordMetric(BillingMetrics.Operation.GET_SKU_DETAILS, getResponseCodeFromBundle(skuDetails), start,
+                    itemCount(skuDetails, RESPONSE_GET_SKU_DETAILS_LIST));
+        }
 
-            for (String thisResponse : responseList) {
-                BillingProduct d = new BillingProduct(itemType, thisResponse);
-                logDebug("Got BillingProduct: " + d);
-                inv.addBillingProduct(d);
+        if (!skuDetails.containsKey(RESPONSE_GET_SKU_DETAILS_LIST)) {
+            int response = getResponseCodeFromBundle(skuDetails);
+            if (response != BILLING_RESPONSE_RESULT_OK) {
+                logDebug("getBillingProduct() failed: {}", getResponseDesc(response));
+                return response;
+            } else {
+                logError("getBillingProduct() returned a bundle with neither an error nor a detail list.");
+                return IABHELPER_BAD_RESPONSE;
             }
         }
 
+        ArrayList<String> responseList = skuDetails.getStringArrayList(
+                RESPONSE_GET_SKU_DETAILS_LIST);
+
+        SkuDetailsCache cache = mSkuDetailsCache;
+        for (String thisResponse : responseList) {
+            BillingProduct d = parseProduct(itemType, thisResponse);
+            logDebug("Got BillingProduct: {}", d);
+            products.add(d);
+            if (cache != null) cache.put(d);
+        }
         return BILLING_RESPONSE_RESULT_OK;
     }
 
+    // Parses one SKU detail, timing it if metrics are set
+    private BillingProduct parseProduct(String itemType, String json) throws JSONException {
+        long start = metricsStart();
+        if (start == 0) return new BillingProduct(itemType, json, mLazyModelParsing);
+        int response = IABHELPER_BAD_RESPONSE;
+        try {
+            BillingProduct product = new BillingProduct(itemType, json, mLazyModelParsing);
+            response = BILLING_RESPONSE_RESULT_OK;
+            return product;
+        } finally {
+            recordMetric(BillingMetrics.Operation.PARSE_JSON, response, start, 0);
+        }
+    }
+
+    // Refreshes the given stale SKU details in background, as a read-only async operation
+    void revalidateSkuDetails(final String itemType, List<String> skus) {
+        final ArrayList<String> skuList = new ArrayList<String>(skus);
+        try {
+            flagStartQueryAsync("revalidate sku details");
+        } catch (BillingAsyncInProgressException e) {
+            logDebug("Not revalidating stale SKU details: {}", e.getMessage());
+            return;
+        }
+        try {
+            mExecutor.execute(mTracing.wrap("revalidateSkuDetails", new Runnable() {
+                public void run() {
+                    try {
+                        int response = querySkuDetails(itemType, skuList, new BillingInventory.Builder());
+                        if (response != BILLING_RESPONSE_RESULT_OK) {
+                            logDebug("Revalidating SKU details failed: {}", getResponseDesc(response));
+                        }
+                    } catch (RemoteException e) {
+                        logWarn("RemoteException while revalidating SKU details.");
+                    } catch (JSONException e) {
+                        logWarn("Error parsing JSON response while revalidating SKU details.");
+                    } finally {
+                        flagEndQueryAsync("revalidate sku details");
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            flagEndQueryAsync("revalidate sku details");
+        }
+    }
+
     void consumeAsyncInternal(final List<BillingPurchase> purchases,
                               final OnConsumeFinishedListener singleListener,
-                              final OnConsumeMultiFinishedListener multiListener)
+                              final OnConsumeMultiFinishedListener multiListener,
+                              final OnConsumeProgressListener progressListener)
             throws BillingAsyncInProgressException {
-        final Handler handler = new Handler();
-        flagStartAsync("consume");
-        (new Thread(new Runnable() {
-            public void run() {
-                final List<BillingResult> results = new ArrayList<BillingResult>();
-                for (BillingPurchase purchase : purchases) {
+        final List<String> tokens = new ArrayList<String>(purchases.size());
+        for (BillingPurchase purchase : purchases) {
+            tokens.add(purchase.getToken());
+        }
+        final Object ticket = flagStartConsumeAsync("consume", tokens);
+        try {
+            mExecutor.execute(mTracing.wrap("consumeAsync", new Runnable() {
+                public void run() {
+                    final List<BillingResult> results;
                     try {
-                        consume(purchase);
-                        results.add(new BillingResult(BILLING_RESPONSE_RESULT_OK, "Successful consume of sku " + purchase.getSku()));
-                    } catch (BillingException ex) {
-                        results.add(ex.getResult());
+                        results = mBatchConsumer.consume(purchases, createItemCallback(purchases, multiListener,
+                                progressListener));
+                    } finally {
+                        flagEndConsumeAsync("consume", ticket, tokens);
+                    }
+                    if (!mDisposed && singleListener != null) {
+                        mExecutor.dispatch(mTracing.wrap("onConsumeFinished", new Runnable() {
+                            public void run() {
+                                singleListener.onConsumeFinished(purchases.get(0), results.get(0));
+                            }
+                        }));
+                    }
+                    if (!mDisposed && multiListener != null) {
+                        mExecutor.dispatch(mTracing.wrap("onConsumeMultiFinished", new Runnable() {
+                            public void run() {
+                                multiListener.onConsumeMultiFinished(purchases, results);
+                            }
+                        }));
                     }
                 }
+            }));
+        } catch (RejectedExecutionException e) {
+            flagEndConsumeAsync("consume", ticket, tokens);
+            throw e;
+        }
+    }
 
-                flagEndAsync();
-                if (!mDisposed && singleListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            singleListener.onConsumeFinished(purchases.get(0), results.get(0));
-                        }
-                    });
-                }
-                if (!mDisposed && multiListener != null) {
-                    handler.post(new Runnable() {
-                        public void run() {
-                            multiListener.onConsumeMultiFinished(purchases, results);
-                        }
-                    });
-                }
+    // Dispatches each result of a batch to the item and progress listeners, if any
+    private BatchConsumer.ItemCallback createItemCallback(final List<BillingPurchase> purchases,
+                                                          OnConsumeMultiFinishedListener multiListener,
+                                                          final OnConsumeProgressListener progressListener) {
+        final OnConsumeItemFinishedListener itemListener = multiListener instanceof OnConsumeItemFinishedListener
+                ? (OnConsumeItemFinishedListener) multiListener : null;
+        if (itemListener == null && progressListener == null) return null;
+
+        final AtomicInteger completed = new AtomicInteger(0);
+        return new BatchConsumer.ItemCallback() {
+            public void onItemConsumed(final int index, final BillingResult result) {
+                if (mDisposed) return;
+                mExecutor.dispatch(mTracing.wrap("onConsumeItemFinished", new Runnable() {
+                    public void run() {
+                        // Counted here so the progress reported never goes backwards.
+                        int done = completed.incrementAndGet();
+                        if (itemListener != null) itemListener.onConsumeItemFinished(purchases.get(index), result);
+                        if (progressListener != null) progressListener.onConsumeProgress(done, purchases.size());
+                    }
+                }));
             }
-        })).start();
+        };
+    }
+
+    // Calls isBillingSupported, timing it if metrics are set
+    private int isBillingSupported(int apiVersion, String packageName, String type) throws RemoteException {
+        Tracing.Scope span = mTracing.start("isBillingSupported");
+        Tracing.tag(span, "type", type);
+        long start = metricsStart();
+        int response;
+        try {
+            response = mService.isBillingSupported(apiVersion, packageName, type);
+        } catch (RemoteException e) {
+            recordMetric(BillingMetrics.Operation.IS_BILLING_SUPPORTED, IABHELPER_REMOTE_EXCEPTION, start, 0);
+            throw e;
+        } finally {
+            Tracing.end(span);
+        }
+        recordMetric(BillingMetrics.Operation.IS_BILLING_SUPPORTED, response, start, 0);
+        return response;
+    }
+
+    // Verifies the signature of the purchase being bought, timing it if metrics or tracing are set
+    private boolean verifyPurchase(String purchaseData, String dataSignature) {
+        Tracing.Scope span = mTracing.start("verifyPurchase");
+        long start = metricsStart();
+        try {
+            boolean verified = mPurchaseVerifier.verifyPurchase(purchaseData, dataSignature);
+            recordMetric(BillingMetrics.Operation.VERIFY_SIGNATURE, verified ? BILLING_RESPONSE_RESULT_OK
+                    : IABHELPER_VERIFICATION_FAILED, start, 0);
+            return verified;
+        } finally {
+            Tracing.end(span);
+        }
+    }
+
+    // Returns the start time of an operation to pass to recordMetric, or 0 if metrics are not set.
+    // (A nanoTime of exactly 0 then just goes unrecorded.)
+    long metricsStart() {
+        return mMetrics != null ? System.nanoTime() : 0;
+    }
+
+    // Notifies the metrics, if any, of an operation started at start
+    void recordMetric(BillingMetrics.Operation operation, int response, long start, int itemCount) {
+        BillingMetrics metrics = mMetrics;
+        if (metrics != null && start != 0) {
+            metrics.onOperation(operation, response, System.nanoTime() - start, itemCount);
+        }
+    }
+
+    private static int itemCount(Bundle bundle, String key) {
+        List<String> items = bundle != null ? bundle.getStringArrayList(key) : null;
+        return items != null ? items.size() : 0;
     }
 
     void logDebug(String msg) {
-        if (mDebugLog) Log.d(mDebugTag, msg);
+        mLog.d(msg);
+    }
+
+    void logDebug(String format, Object arg) {
+        mLog.d(format, arg);
+    }
+
+    void logDebug(String format, Object arg1, Object arg2) {
+        mLog.d(format, arg1, arg2);
+    }
+
+    void logDebug(String format, Object arg1, Object arg2, Object arg3) {
+        mLog.d(format, arg1, arg2, arg3);
     }
 
     void logError(String msg) {
-        Log.e(mDebugTag, "In-app billing error: " + msg);
+        mLog.e(msg);
+    }
+
+    void logError(String format, Object arg) {
+        mLog.e(format, arg);
+    }
+
+    void logError(String format, Object arg1, Object arg2) {
+        mLog.e(format, arg1, arg2);
     }
 
     void logWarn(String msg) {
-        Log.w(mDebugTag, "In-app billing warning: " + msg);
+        mLog.w(msg);
     }
 }
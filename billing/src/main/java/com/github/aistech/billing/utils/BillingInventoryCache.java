@@ -0,0 +1,176 @@
+package com.github.aistech.billing.utils;
+
+import android.util.Log;
+
+import com.github.aistech.billing.model.BillingInventory;
+import com.github.aistech.billing.model.BillingProduct;
+import com.github.aistech.billing.model.BillingPurchase;
+
+import org.json.JSONException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * Persists the last verified {@link BillingInventory} to a file, so it can be shown right
+ * away on the next cold start while a fresh inventory is queried.
+ * <p>
+ * The file holds a small header followed by the products and the purchases, each as its item
+ * type and the raw JSON (plus the signature for purchases) in length-prefixed UTF-8. Restored
+ * purchases are verified again with the app's public key, so a tampered file can't grant
+ * entitlements. A missing, outdated or corrupt file simply reads as no cache.
+ * <p>
+ * Reads and writes do IO; call them from a background thread.
+ */
+public class BillingInventoryCache {
+
+    private static final String TAG = "BillingInventoryCache";
+
+    private static final int MAGIC = 0x42494e56; // "BINV"
+    private static final int VERSION = 1;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final PurchaseVerifier verifier;
+
+    /**
+     * @param file     The file to keep the inventory in.
+     * @param verifier The verifier used to check restored purchases.
+     */
+    public BillingInventoryCache(File file, PurchaseVerifier verifier) {
+        this.file = file;
+        this.verifier = verifier;
+    }
+
+    /**
+     * Restores the persisted inventory.
+     *
+     * @return the inventory, flagged as {@link BillingInventory#isCached() cached}, or null if
+     * there is no usable cache.
+     */
+    public synchronized BillingInventory read() {
+        DataInputStream in = null;
+        long limit = file.length();
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                Log.w(TAG, "Ignoring inventory cache with unknown format.");
+                return null;
+            }
+
+            BillingInventory.Builder inv = new BillingInventory.Builder().setCached(true);
+            int products = in.readInt();
+            for (int i = 0; i < products; i++) {
+                String itemType = readString(in, limit);
+                inv.addBillingProduct(new BillingProduct(itemType, readString(in, limit), true));
+            }
+
+            int purchases = in.readInt();
+            for (int i = 0; i < purchases; i++) {
+                String itemType = readString(in, limit);
+                String purchaseData = readString(in, limit);
+                String signature = readString(in, limit);
+                if (verifier.verifyPurchase(purchaseData, signature)) {
+                    inv.addPurchase(new BillingPurchase(itemType, purchaseData, signature, true));
+                } else {
+                    Log.w(TAG, "Dropping cached purchase that failed signature verification.");
+                }
+            }
+            return inv.build();
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read inventory cache: " + e.getMessage());
+            return null;
+        } catch (JSONException e) {
+            Log.w(TAG, "Unable to parse inventory cache: " + e.getMessage());
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * Persists the given inventory, replacing the previous one. The file is written aside
+     * and renamed, so a crash midway leaves the previous cache intact.
+     */
+    public synchronized void write(BillingInventory inv) {
+        File tmp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            List<BillingProduct> products = inv.getAllBillingProducts();
+            out.writeInt(products.size());
+            for (BillingProduct product : products) {
+                writeString(out, product.getItemType());
+                writeString(out, product.getJson());
+            }
+
+            List<BillingPurchase> purchases = inv.getAllPurchases();
+            out.writeInt(purchases.size());
+            for (BillingPurchase purchase : purchases) {
+                writeString(out, purchase.getItemType());
+                writeString(out, purchase.getOriginalJson());
+                writeString(out, purchase.getSignature());
+            }
+            out.close();
+            out = null;
+
+            if (!tmp.renameTo(file)) {
+                throw new IOException("Unable to rename " + tmp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write inventory cache: " + e.getMessage());
+            closeQuietly(out);
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Deletes the persisted inventory, for example when the user signs out.
+     */
+    public synchronized void clear() {
+        file.delete();
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in, long limit) throws IOException {
+        int length = in.readInt();
+        if (length < 0) return null;
+        if (length > limit) throw new IOException("Corrupt string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) return;
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Nothing left to do.
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.github.aistech.billing.utils;
+
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Logging facade of the billing helper.
+ * <p>
+ * Messages are formats with {@code {}} placeholders, filled with {@code String.valueOf} of
+ * the arguments only if the message is actually logged. While debug logging and event capture
+ * are both off, a debug call costs a field read: no string is built and no argument is
+ * rendered (a Bundle's toString, for instance). The fixed-arity overloads avoid allocating a
+ * varargs array too.
+ * <p>
+ * Event capture keeps the last messages of every level in a fixed-size ring buffer, to be
+ * dumped when something goes wrong. Recording an event stores its format and arguments in a
+ * preallocated slot, and the message is only formatted by {@link #getRecentEvents()}.
+ * Arguments other than strings, boxed primitives and enums are rendered when recorded, so the
+ * dump shows them as they were and the ring doesn't keep them alive.
+ * <p>
+ * This class is thread-safe.
+ */
+final class BillingLog {
+
+    private static final char LEVEL_DEBUG = 'D';
+    private static final char LEVEL_WARN = 'W';
+    private static final char LEVEL_ERROR = 'E';
+
+    private volatile boolean mDebug;
+    private volatile String mTag;
+
+    // Ring buffer of the recent events, or null while capture is off
+    private volatile EventRing mEvents;
+
+    BillingLog(String tag) {
+        mTag = tag;
+    }
+
+    void setDebug(boolean debug) {
+        mDebug = debug;
+    }
+
+    void setTag(String tag) {
+        mTag = tag;
+    }
+
+    /**
+     * Starts keeping the last capacity events, dropping the ones kept so far; 0 stops.
+     */
+    void setCapacity(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("capacity must not be negative.");
+        mEvents = capacity == 0 ? null : new EventRing(capacity);
+    }
+
+    /**
+     * Returns whether debug messages are logged or captured, for callers that need to do
+     * more than format a message to log one.
+     */
+    boolean isDebugEnabled() {
+        return mDebug || mEvents != null;
+    }
+
+    void d(String msg) {
+        if (isDebugEnabled()) debug(msg, null, null, null, 0);
+    }
+
+    void d(String format, Object arg) {
+        if (isDebugEnabled()) debug(format, arg, null, null, 1);
+    }
+
+    void d(String format, Object arg1, Object arg2) {
+        if (isDebugEnabled()) debug(format, arg1, arg2, null, 2);
+    }
+
+    void d(String format, Object arg1, Object arg2, Object arg3) {
+        if (isDebugEnabled()) debug(format, arg1, arg2, arg3, 3);
+    }
+
+    void w(String msg) {
+        w(msg, null, null, 0);
+    }
+
+    void w(String format, Object arg) {
+        w(format, arg, null, 1);
+    }
+
+    void w(String format, Object arg1, Object arg2) {
+        w(format, arg1, arg2, 2);
+    }
+
+    private void w(String format, Object arg1, Object arg2, int argCount) {
+        EventRing events = mEvents;
+        if (events != null) events.add(LEVEL_WARN, format, arg1, arg2, null, argCount);
+        Log.w(mTag, "In-app billing warning: " + format(format, arg1, arg2, null, argCount));
+    }
+
+    void e(String msg) {
+        e(msg, null, null, 0);
+    }
+
+    void e(String format, Object arg) {
+        e(format, arg, null, 1);
+    }
+
+    void e(String format, Object arg1, Object arg2) {
+        e(format, arg1, arg2, 2);
+    }
+
+    private void e(String format, Object arg1, Object arg2, int argCount) {
+        EventRing events = mEvents;
+        if (events != null) events.add(LEVEL_ERROR, format, arg1, arg2, null, argCount);
+        Log.e(mTag, "In-app billing error: " + format(format, arg1, arg2, null, argCount));
+    }
+
+    private void debug(String format, Object arg1, Object arg2, Object arg3, int argCount) {
+        EventRing events = mEvents;
+        if (events != null) events.add(LEVEL_DEBUG, format, arg1, arg2, arg3, argCount);
+        if (mDebug) Log.d(mTag, format(format, arg1, arg2, arg3, argCount));
+    }
+
+    /**
+     * Returns the captured events, oldest first, one formatted line each.
+     */
+    List<String> getRecentEvents() {
+        EventRing events = mEvents;
+        return events != null ? events.format() : new ArrayList<String>();
+    }
+
+    /**
+     * Writes the captured events to LogCat, oldest first.
+     */
+    void dumpRecentEvents() {
+        List<String> lines = getRecentEvents();
+        String tag = mTag;
+        Log.w(tag, "Last " + lines.size() + " in-app billing event(s):");
+        for (String line : lines) {
+            Log.w(tag, line);
+        }
+    }
+
+    // Replaces the {} placeholders of format with the arguments, in order.
+    static String format(String format, Object arg1, Object arg2, Object arg3, int argCount) {
+        if (argCount == 0 || format == null) return format;
+        StringBuilder builder = new StringBuilder(format.length() + 32);
+        int start = 0;
+        for (int i = 0; i < argCount; i++) {
+            int at = format.indexOf("{}", start);
+            if (at < 0) break;
+            builder.append(format, start, at);
+            builder.append(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+            start = at + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
+    /**
+     * Fixed-size ring of events, recycling its slots.
+     */
+    private static final class EventRing {
+        private final Event[] mSlots;
+        private long mCount;
+
+        EventRing(int capacity) {
+            mSlots = new Event[capacity];
+            for (int i = 0; i < capacity; i++) {
+                mSlots[i] = new Event();
+            }
+        }
+
+        void add(char level, String format, Object arg1, Object arg2, Object arg3, int argCount) {
+            // Rendered outside the lock, as a toString may take a while.
+            arg1 = snapshot(arg1);
+            arg2 = snapshot(arg2);
+            arg3 = snapshot(arg3);
+            long time = System.currentTimeMillis();
+            String thread = Thread.currentThread().getName();
+            synchronized (this) {
+                Event event = mSlots[(int) (mCount++ % mSlots.length)];
+                event.mTime = time;
+                event.mThread = thread;
+                event.mLevel = level;
+                event.mFormat = format;
+                event.mArg1 = arg1;
+                event.mArg2 = arg2;
+                event.mArg3 = arg3;
+                event.mArgCount = argCount;
+            }
+        }
+
+        // Returns the argument if it can't change, or its rendering as of now.
+        private static Object snapshot(Object arg) {
+            if (arg == null || arg instanceof String || arg instanceof Integer || arg instanceof Long
+                    || arg instanceof Boolean || arg instanceof Character || arg instanceof Double
+                    || arg instanceof Float || arg instanceof Short || arg instanceof Byte || arg instanceof Enum) {
+                return arg;
+            }
+            return String.valueOf(arg);
+        }
+
+        synchronized List<String> format() {
+            int size = (int) Math.min(mCount, mSlots.length);
+            List<String> lines = new ArrayList<String>(size);
+            SimpleDateFormat time = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
+            for (long i = mCount - size; i < mCount; i++) {
+                Event event = mSlots[(int) (i % mSlots.length)];
+                lines.add(time.format(new Date(event.mTime)) + " " + event.mLevel + " [" + event.mThread + "] "
+                        + BillingLog.format(event.mFormat, event.mArg1, event.mArg2, event.mArg3, event.mArgCount));
+            }
+            return lines;
+        }
+    }
+
+    private static final class Event {
+        long mTime;
+        String mThread;
+        char mLevel;
+        String mFormat;
+        Object mArg1;
+        Object mArg2;
+        Object mArg3;
+        int mArgCount;
+    }
+}
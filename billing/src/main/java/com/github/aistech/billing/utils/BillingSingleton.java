@@ -10,11 +10,16 @@ import android.util.Log;
 import com.github.aistech.billing.model.BillingProduct;
 import com.github.aistech.billing.model.BillingPurchase;
 
+import java.io.File;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 
 import com.github.aistech.billing.broadcasts.BillingBroadcastReceiver;
+import com.github.aistech.billing.metrics.BillingMetrics;
+import com.github.aistech.billing.metrics.BillingTracer;
 import com.github.aistech.billing.model.BillingInventory;
 import com.github.aistech.billing.model.BillingResult;
 
@@ -26,6 +31,7 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
 
     public static final String TAG = "BillingSingleton";
     public static final int PURCHASE_REQUEST = 2323;
+    public static final String INVENTORY_CACHE_FILE = "billing_inventory.bin";
 
     private static BillingSingleton instance = null;
 
@@ -33,6 +39,21 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
     private BillingBroadcastReceiver billingBroadcastReceiver;
     private Set<BillingHelper.QueryBillingInventoryFinishedListener> billingInventoryFinishedListeners;
 
+    /* Inventory query coalescing: at most one query in flight and one follow-up pending */
+    private final InventoryQueryCoalescer inventoryQueries = new InventoryQueryCoalescer();
+    private final Object inventoryQueryLock = new Object();
+
+    /* Persisted inventory, served before the first fresh query result */
+    private BillingInventoryCache inventoryCache;
+    private boolean cachedInventoryServed;
+    private boolean freshInventoryReceived;
+
+    private boolean parallelInventoryQuery;
+
+    /* Last fresh inventory snapshot, refreshed incrementally on PURCHASES_UPDATED */
+    private boolean deltaInventoryRefresh = true;
+    private final AtomicReference<BillingInventory> lastInventory = new AtomicReference<>();
+
     public static BillingSingleton getInstance() {
         if (instance == null) {
             instance = new BillingSingleton();
@@ -48,7 +69,25 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
      * Should be called on {@link Application#onCreate()}
      */
     public void init(Context context, String base64PublicKey) {
-        this.billingHelper = new BillingHelper(context, base64PublicKey);
+        init(context, base64PublicKey, null);
+    }
+
+    /**
+     * Same as {@link #init(Context, String)}, but running the asynchronous operations on the
+     * given {@link BillingExecutor}, or on a default one if null.
+     */
+    public void init(Context context, String base64PublicKey, BillingExecutor executor) {
+        init(context, base64PublicKey, executor, null);
+    }
+
+    /**
+     * Same as {@link #init(Context, String, BillingExecutor)}, remembering the verified
+     * purchases in the given {@link VerifiedPurchaseCache}, e.g. a larger one for users
+     * owning many items, or in a default one if null.
+     */
+    public void init(Context context, String base64PublicKey, BillingExecutor executor,
+                     VerifiedPurchaseCache verificationCache) {
+        this.billingHelper = new BillingHelper(context, base64PublicKey, executor, verificationCache);
     }
 
     /**
@@ -66,12 +105,117 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
             try {
                 this.billingHelper.dispose();
                 this.billingHelper = null;
+                this.inventoryCache = null;
+                this.lastInventory.set(null);
             } catch (BillingHelper.BillingAsyncInProgressException e) {
                 Log.e(TAG, e.getMessage());
             }
         }
     }
 
+    /**
+     * Enables the persistent inventory cache. Should be called right after {@link #init}.
+     * <p>
+     * Every successful inventory query is then saved, and the first {@link #queryInventory()}
+     * of the next launch delivers the saved inventory to the listeners right away, flagged as
+     * {@link BillingInventory#isCached()}, followed by the fresh one once the query finishes.
+     *
+     * @param context
+     */
+    public void enableInventoryCache(Context context) {
+        this.inventoryCache = new BillingInventoryCache(new File(context.getFilesDir(), INVENTORY_CACHE_FILE),
+                this.billingHelper.mPurchaseVerifier);
+    }
+
+    /**
+     * Enables the in-memory SKU details cache, so inventory queries with products only fetch
+     * the details that are missing or expired.
+     *
+     * @param cache
+     */
+    public void enableSkuDetailsCache(SkuDetailsCache cache) {
+        this.billingHelper.setSkuDetailsCache(cache);
+    }
+
+    /**
+     * Returns the cache of already verified purchases, e.g. to log its hit and miss counts.
+     */
+    public VerifiedPurchaseCache getVerificationCache() {
+        return this.billingHelper.getVerificationCache();
+    }
+
+    /**
+     * Measures the billing service calls, signature verifications and JSON parsing with the
+     * given metrics, e.g. a {@link com.github.aistech.billing.metrics.DefaultBillingMetrics}.
+     *
+     * @param metrics
+     */
+    public void setMetrics(BillingMetrics metrics) {
+        this.billingHelper.setMetrics(metrics);
+    }
+
+    /**
+     * Traces the billing operations with the given tracer, e.g. a
+     * {@link com.github.aistech.billing.metrics.TraceRecorder} to export a Chrome trace.
+     *
+     * @param tracer
+     */
+    public void setTracer(BillingTracer tracer) {
+        this.billingHelper.setTracer(tracer);
+    }
+
+    /**
+     * Queries in-app items and subscriptions at the same time on {@link #queryInventory()}.
+     *
+     * @param parallel
+     */
+    public void enableParallelInventoryQuery(boolean parallel) {
+        this.parallelInventoryQuery = parallel;
+    }
+
+    /**
+     * Refreshes only the purchases that changed when a PURCHASES_UPDATED broadcast arrives,
+     * instead of querying the whole inventory again. Enabled by default.
+     * <p>
+     * Registered {@link BillingHelper.QueryBillingInventoryDeltaListener}s then receive the
+     * added and removed purchases before the refreshed inventory.
+     *
+     * @param delta
+     */
+    public void enableDeltaInventoryRefresh(boolean delta) {
+        synchronized (inventoryQueryLock) {
+            this.deltaInventoryRefresh = delta;
+        }
+    }
+
+    /**
+     * Deletes the persisted inventory, if the cache is enabled, and forgets the last inventory
+     * received. Useful when the user signs out.
+     */
+    public void clearInventoryCache() {
+        final BillingHelper helper = this.billingHelper;
+        final BillingInventoryCache cache = this.inventoryCache;
+        if (helper == null || cache == null) return;
+        synchronized (inventoryQueryLock) {
+            this.freshInventoryReceived = false;
+        }
+        this.lastInventory.set(null);
+        try {
+            helper.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Under the cache's lock, so that a write already running can't put the
+                    // old inventory back.
+                    synchronized (cache) {
+                        cache.clear();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Billing was destroyed, not deleting the saved inventory.");
+        }
+    }
+
     /**
      * Enable debug mode usaing the TAG
      *
@@ -103,7 +247,11 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
     }
 
     /**
-     * Register for {@link BillingHelper.QueryBillingInventoryFinishedListener}
+     * Register for {@link BillingHelper.QueryBillingInventoryFinishedListener}. Register a
+     * {@link BillingHelper.QueryBillingInventoryStreamListener} to also receive the purchases
+     * page by page while the inventory is queried, or a
+     * {@link BillingHelper.QueryBillingInventoryDeltaListener} to receive the purchases added
+     * and removed on PURCHASES_UPDATED.
      *
      * @param finishedListener
      */
@@ -123,52 +271,255 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
     }
 
     /**
-     * Query inventory
+     * Query inventory.
+     * <p>
+     * Queries are coalesced: if a query is already in flight, this doesn't start another one.
+     * Every registered listener receives the result of the query in flight, and exactly one
+     * follow-up query runs after it, no matter how many requests arrived meanwhile.
      */
     public void queryInventory() {
-        BillingHelper.QueryBillingInventoryFinishedListener finishedListener = createInventoryNotifier();
-
-        try {
-            this.billingHelper.queryBillingInventoryAsync(finishedListener);
-        } catch (BillingHelper.BillingAsyncInProgressException e) {
-            notifyInventoryOnError(e);
-        }
+        requestInventory(false, null);
     }
 
     /**
      * Query and return all available products with full details.
+     * Coalesced as in {@link #queryInventory()}; the follow-up query covers the skus of
+     * every request that arrived while a query was in flight.
      *
      * @param skus
      */
     public void queryInventory(List<String> skus) {
-        BillingHelper.QueryBillingInventoryFinishedListener finishedListener = createInventoryNotifier();
+        requestInventory(true, skus);
+    }
+
+    /**
+     * Util method that records a request for the inventory and starts a query, unless
+     * one is already in flight.
+     */
+    private void requestInventory(boolean queryProducts, List<String> skus) {
+        if (!this.inventoryQueries.request(queryProducts, skus)) return;
+
+        boolean serveCache;
+        synchronized (inventoryQueryLock) {
+            serveCache = this.inventoryCache != null && !this.cachedInventoryServed;
+            this.cachedInventoryServed = true;
+        }
+        if (serveCache) serveCachedInventory();
+        startPendingInventoryQuery();
+    }
+
+    /**
+     * Util method that refreshes the purchases of the last fresh inventory incrementally.
+     * Falls back to a full query if there is no such inventory yet, or if a query is already
+     * in flight (its follow-up sees the changes anyway).
+     */
+    private void requestInventoryDelta() {
+        BillingInventory current;
+        synchronized (inventoryQueryLock) {
+            current = this.deltaInventoryRefresh ? this.lastInventory.get() : null;
+        }
+        if (current == null || !this.inventoryQueries.startIfIdle()) {
+            requestInventory(false, null);
+            return;
+        }
+
+        BillingHelper helper = this.billingHelper;
+        if (helper == null) {
+            finishInventoryQuery();
+            return;
+        }
+
+        try {
+            helper.queryPurchasesDeltaAsync(current, createInventoryNotifier());
+        } catch (BillingHelper.BillingAsyncInProgressException e) {
+            failInventoryQuery(e);
+        } catch (RuntimeException e) {
+            // E.g. not set up yet, or destroyed meanwhile: no callback will end this query.
+            failInventoryQuery(e);
+        }
+    }
+
+    /**
+     * Util method that reads the persisted inventory in background and delivers it to the
+     * listeners, unless a fresh inventory arrived first.
+     */
+    private void serveCachedInventory() {
+        final BillingHelper helper = this.billingHelper;
+        final BillingInventoryCache cache = this.inventoryCache;
+        try {
+            helper.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    final BillingInventory inv = cache.read();
+                    if (inv == null) return;
+                    helper.mExecutor.dispatch(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (inventoryQueryLock) {
+                                if (freshInventoryReceived) return;
+                            }
+                            notifyInventoryFinished(new BillingResult(BillingHelper.BILLING_RESPONSE_RESULT_OK,
+                                    "BillingInventory loaded from cache."), inv);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Billing was destroyed, not serving cached inventory.");
+        }
+    }
+
+    /**
+     * Util method that publishes a fresh inventory and persists it in background.
+     */
+    private void saveInventory(BillingInventory inv) {
+        synchronized (inventoryQueryLock) {
+            this.freshInventoryReceived = true;
+        }
+        this.lastInventory.set(inv);
+        persistLastInventory();
+    }
 
+    /**
+     * Util method that persists the last inventory in background, if the cache is enabled.
+     */
+    private void persistLastInventory() {
+        final BillingHelper helper = this.billingHelper;
+        final BillingInventoryCache cache = this.inventoryCache;
+        if (helper == null || cache == null) return;
         try {
-            this.billingHelper.queryBillingInventoryAsync(true, skus, null, finishedListener);
+            helper.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // Read under the cache's lock, so that writes running out of order still
+                    // leave the latest inventory on disk.
+                    synchronized (cache) {
+                        BillingInventory latest = lastInventory.get();
+                        if (latest != null) cache.write(latest);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Billing was destroyed, not saving inventory.");
+        }
+    }
+
+    /**
+     * Util method that starts a query for every request recorded so far.
+     */
+    private void startPendingInventoryQuery() {
+        InventoryQueryCoalescer.Request request = this.inventoryQueries.takePending();
+
+        BillingHelper helper = this.billingHelper;
+        if (helper == null) {
+            // Destroyed while a follow-up was pending.
+            finishInventoryQuery();
+            return;
+        }
+
+        try {
+            helper.queryBillingInventoryAsync(request.mQueryProducts, request.mSkus, null, this.parallelInventoryQuery,
+                    createInventoryNotifier());
         } catch (BillingHelper.BillingAsyncInProgressException e) {
-            notifyInventoryOnError(e);
+            failInventoryQuery(e);
+        } catch (RuntimeException e) {
+            // E.g. not set up yet, or destroyed meanwhile: no callback will end this query.
+            failInventoryQuery(e);
+        }
+    }
+
+    /**
+     * Util method that reports a query that couldn't be started to the listeners, and ends it.
+     */
+    private void failInventoryQuery(Exception e) {
+        try {
+            if (e instanceof BillingHelper.BillingAsyncInProgressException) {
+                notifyInventoryOnError((BillingHelper.BillingAsyncInProgressException) e);
+            } else {
+                Log.e(TAG, "Couldn't start the inventory query.", e);
+                notifyInventoryFinished(new BillingResult(BillingHelper.IABHELPER_UNKNOWN_ERROR,
+                        "Couldn't start the inventory query: " + e), null);
+            }
+        } finally {
+            finishInventoryQuery();
+        }
+    }
+
+    /**
+     * Util method that ends the query in flight, starting the follow-up query if requests
+     * arrived meanwhile.
+     */
+    private void finishInventoryQuery() {
+        if (this.inventoryQueries.finish(this.billingHelper != null)) {
+            startPendingInventoryQuery();
         }
     }
 
     /**
      * Util method that create an Listener that will notify all registered {@link BillingHelper.QueryBillingInventoryFinishedListener}
+     * (streaming the pages of purchases to the {@link BillingHelper.QueryBillingInventoryStreamListener} ones
+     * and the purchase changes to the {@link BillingHelper.QueryBillingInventoryDeltaListener} ones)
+     * and then end the query in flight.
      *
      * @return
      */
-    private BillingHelper.QueryBillingInventoryFinishedListener createInventoryNotifier() {
-        return new BillingHelper.QueryBillingInventoryFinishedListener() {
-            @Override
-            public void onQueryBillingInventoryFinished(BillingResult result, BillingInventory inv) {
-                for (BillingHelper.QueryBillingInventoryFinishedListener listener : billingInventoryFinishedListeners) {
-                    listener.onQueryBillingInventoryFinished(result, inv);
+    private InventoryNotifier createInventoryNotifier() {
+        return new InventoryNotifier();
+    }
+
+    private class InventoryNotifier implements BillingHelper.QueryBillingInventoryStreamListener,
+            BillingHelper.QueryBillingInventoryDeltaListener {
+        @Override
+        public void onPurchasesReceived(String itemType, List<BillingPurchase> purchases) {
+            for (BillingHelper.QueryBillingInventoryFinishedListener listener : billingInventoryFinishedListeners) {
+                if (listener instanceof BillingHelper.QueryBillingInventoryStreamListener) {
+                    ((BillingHelper.QueryBillingInventoryStreamListener) listener).onPurchasesReceived(itemType, purchases);
                 }
             }
+        }
+
+        @Override
+        public void onPurchasesChanged(List<BillingPurchase> added, List<BillingPurchase> removed) {
+            for (BillingHelper.QueryBillingInventoryFinishedListener listener : billingInventoryFinishedListeners) {
+                if (listener instanceof BillingHelper.QueryBillingInventoryDeltaListener) {
+                    ((BillingHelper.QueryBillingInventoryDeltaListener) listener).onPurchasesChanged(added, removed);
+                }
+            }
+        }
+
+        @Override
+        public void onQueryBillingInventoryFinished(BillingResult result, BillingInventory inv) {
+            try {
+                if (result.isOk() && inv != null) {
+                    saveInventory(inv);
+                }
+                notifyInventoryFinished(result, inv);
+            } finally {
+                // Even if a listener threw, or the follow-up queries would never run.
+                finishInventoryQuery();
+            }
+        }
 
-            @Override
-            public void onError(BillingHelper.BillingAsyncInProgressException e) {
+        @Override
+        public void onError(BillingHelper.BillingAsyncInProgressException e) {
+            try {
                 notifyInventoryOnError(e);
+            } finally {
+                finishInventoryQuery();
             }
-        };
+        }
+    }
+
+    /**
+     * Util method that notify all Listener for a finished query.
+     *
+     * @param result
+     * @param inv
+     */
+    private void notifyInventoryFinished(BillingResult result, BillingInventory inv) {
+        for (BillingHelper.QueryBillingInventoryFinishedListener listener : billingInventoryFinishedListeners) {
+            listener.onQueryBillingInventoryFinished(result, inv);
+        }
     }
 
     /**
@@ -195,20 +546,84 @@ public class BillingSingleton implements BillingBroadcastReceiver.BillingBroadca
         this.billingHelper.handleActivityResult(requestCode, resultCode, data);
     }
 
-    public void consumePurchaseForProduct(BillingPurchase billingPurchase, BillingHelper.OnConsumeFinishedListener consumeFinishedListener) {
+    /**
+     * Returns the last inventory received from the billing service, or null if none yet.
+     * <p>
+     * The inventory is an immutable snapshot, replaced as a whole when a query finishes or a
+     * purchase is consumed, so it can be read from any thread without synchronization.
+     */
+    public BillingInventory getInventory() {
+        return this.lastInventory.get();
+    }
+
+    public void consumePurchaseForProduct(BillingPurchase billingPurchase, final BillingHelper.OnConsumeFinishedListener consumeFinishedListener) {
         try {
-            this.billingHelper.consumeAsync(billingPurchase, consumeFinishedListener);
+            this.billingHelper.consumeAsync(billingPurchase, new BillingHelper.OnConsumeFinishedListener() {
+                @Override
+                public void onConsumeFinished(BillingPurchase purchase, BillingResult result) {
+                    if (result.isOk()) {
+                        eraseConsumedPurchase(purchase);
+                    }
+                    consumeFinishedListener.onConsumeFinished(purchase, result);
+                }
+
+                @Override
+                public void onError(BillingHelper.BillingAsyncInProgressException e) {
+                    consumeFinishedListener.onError(e);
+                }
+            });
         } catch (BillingHelper.BillingAsyncInProgressException e) {
             consumeFinishedListener.onError(e);
         }
     }
 
+    /**
+     * Util method that publishes and persists a copy of the last inventory without a consumed
+     * purchase, unless a newer inventory no longer has it anyway. Without a fresh inventory,
+     * the persisted one is deleted instead. Otherwise the next launch would serve the consumed
+     * purchase from the cache as still owned.
+     */
+    private void eraseConsumedPurchase(BillingPurchase purchase) {
+        while (true) {
+            BillingInventory current = this.lastInventory.get();
+            if (current == null) {
+                invalidatePersistedInventory();
+                return;
+            }
+            if (current.getPurchaseByToken(purchase.getToken()) == null) return;
+            if (this.lastInventory.compareAndSet(current, current.withoutPurchase(purchase.getSku()))) break;
+        }
+        persistLastInventory();
+    }
+
+    /**
+     * Util method that deletes the persisted inventory in background, unless a fresh
+     * inventory replaces it meanwhile.
+     */
+    private void invalidatePersistedInventory() {
+        final BillingHelper helper = this.billingHelper;
+        final BillingInventoryCache cache = this.inventoryCache;
+        if (helper == null || cache == null) return;
+        try {
+            helper.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (cache) {
+                        if (lastInventory.get() == null) cache.clear();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "Billing was destroyed, not deleting the saved inventory.");
+        }
+    }
+
     /* Callback for BillingBroadcastReceiver*/
 
     @Override
     public void receivedBroadcast() {
         // Received a broadcast notification that the inventory of items has changed
-        Log.d(TAG, "Received broadcast notification. Querying inventory.");
-        queryInventory();
+        Log.d(TAG, "Received broadcast notification. Refreshing inventory.");
+        requestInventoryDelta();
     }
 }
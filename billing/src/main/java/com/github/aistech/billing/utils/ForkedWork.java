@@ -0,0 +1,80 @@
+package com.github.aistech.billing.utils;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Work shared between the calling thread and a few workers on the {@link BillingExecutor},
+ * e.g. the packs of a getSkuDetails query.
+ * <p>
+ * Subclasses take their items in turn in {@link #run()} until none is left. The calling thread
+ * always takes part, so the work gets done even when every thread of the executor is busy:
+ * a worker that only starts once the work is over does nothing. This keeps the fan-outs of
+ * the helper within the threads of its executor, without ever waiting for a queued worker.
+ */
+abstract class ForkedWork implements Runnable {
+
+    // Workers running this work, and whether new ones may still join
+    private int mActiveWorkers;
+    private boolean mClosed;
+
+    /**
+     * Runs the work on the calling thread, helped by up to the given number of workers, and
+     * returns once no worker runs it anymore.
+     *
+     * @param tracing    Where to trace the workers, or null.
+     * @param workerName The name of the workers' spans.
+     */
+    final void runWithWorkers(BillingExecutor executor, int workers, Tracing tracing, String workerName) {
+        for (int i = 0; i < workers; i++) {
+            Runnable worker = new Runnable() {
+                @Override
+                public void run() {
+                    if (!enter()) return;
+                    try {
+                        ForkedWork.this.run();
+                    } finally {
+                        exit();
+                    }
+                }
+            };
+            try {
+                executor.execute(tracing != null ? tracing.wrap(workerName, worker) : worker);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile; the calling thread takes the workers' share.
+                break;
+            }
+        }
+        run();
+        closeAndAwait();
+    }
+
+    private synchronized boolean enter() {
+        if (mClosed) return false;
+        mActiveWorkers++;
+        return true;
+    }
+
+    private synchronized void exit() {
+        mActiveWorkers--;
+        if (mActiveWorkers == 0) notifyAll();
+    }
+
+    /**
+     * Keeps workers still queued from joining and waits for the running ones, which finish
+     * their current item at most.
+     */
+    private void closeAndAwait() {
+        boolean interrupted = false;
+        synchronized (this) {
+            mClosed = true;
+            while (mActiveWorkers > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+}
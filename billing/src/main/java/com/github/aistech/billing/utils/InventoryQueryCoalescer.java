@@ -0,0 +1,90 @@
+package com.github.aistech.billing.utils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Coalesces the inventory queries of {@link BillingSingleton}: at most one query in flight,
+ * and one follow-up pending that covers every request arriving while it is in flight.
+ * <p>
+ * A started query must be ended with {@link #finish}, which tells whether to start the
+ * follow-up. This class is thread-safe.
+ */
+final class InventoryQueryCoalescer {
+
+    /**
+     * What a query asks for: the union of the requests it covers.
+     */
+    static final class Request {
+        final boolean mQueryProducts;
+        // null if no request named skus
+        final List<String> mSkus;
+
+        Request(boolean queryProducts, List<String> skus) {
+            mQueryProducts = queryProducts;
+            mSkus = skus;
+        }
+    }
+
+    private boolean mInFlight;
+    private boolean mPending;
+    private boolean mPendingQueryProducts;
+    private final Set<String> mPendingSkus = new LinkedHashSet<String>();
+
+    /**
+     * Records a request for the inventory.
+     *
+     * @return true if the caller must start a query for {@link #takePending()}, false if the
+     * follow-up of the query in flight covers the request.
+     */
+    synchronized boolean request(boolean queryProducts, Collection<String> skus) {
+        mPendingQueryProducts |= queryProducts;
+        if (skus != null) mPendingSkus.addAll(skus);
+        mPending = true;
+        if (mInFlight) return false;
+        mInFlight = true;
+        return true;
+    }
+
+    /**
+     * Starts a query of its own, such as a delta refresh, unless one is already in flight.
+     *
+     * @return whether the caller must start it.
+     */
+    synchronized boolean startIfIdle() {
+        if (mInFlight) return false;
+        mInFlight = true;
+        return true;
+    }
+
+    /**
+     * Returns what the query being started must ask for, and clears the pending requests.
+     */
+    synchronized Request takePending() {
+        Request request = new Request(mPendingQueryProducts,
+                mPendingSkus.isEmpty() ? null : new ArrayList<String>(mPendingSkus));
+        mPending = false;
+        mPendingQueryProducts = false;
+        mPendingSkus.clear();
+        return request;
+    }
+
+    /**
+     * Ends the query in flight.
+     *
+     * @param followUp Whether a follow-up may start, false e.g. once billing is destroyed.
+     * @return true if the caller must start the follow-up for {@link #takePending()}; it is
+     * then the query in flight.
+     */
+    synchronized boolean finish(boolean followUp) {
+        if (mPending && followUp) return true;
+        mInFlight = false;
+        mPending = false;
+        mPendingQueryProducts = false;
+        mPendingSkus.clear();
+        return false;
+    }
+}
@@ -0,0 +1,165 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.metrics.BillingMetrics;
+import com.github.aistech.billing.model.BillingPurchase;
+
+import org.json.JSONException;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Verifies and parses a page of owned purchases returned by getPurchases, splitting the
+ * page in contiguous ranges as many as the available cores. The calling thread and workers
+ * on the {@link BillingExecutor} take the ranges in turn.
+ * <p>
+ * Results keep the order of the page, so callers can merge them into the
+ * {@link com.github.aistech.billing.model.BillingInventory} exactly as the serial loop did.
+ */
+final class PurchaseVerificationStage {
+
+    // Pages are only split when every range gets at least this many items;
+    // below that, dispatching costs more than verifying on the calling thread.
+    static final int MIN_ITEMS_PER_TASK = 4;
+
+    private final PurchaseVerifier mVerifier;
+    private final BillingExecutor mExecutor;
+    private final int mParallelism;
+    private volatile boolean mLazyParsing = true;
+    private volatile BillingMetrics mMetrics;
+    private volatile Tracing mTracing;
+
+    PurchaseVerificationStage(PurchaseVerifier verifier, BillingExecutor executor) {
+        this(verifier, executor, Runtime.getRuntime().availableProcessors());
+    }
+
+    PurchaseVerificationStage(PurchaseVerifier verifier, BillingExecutor executor, int parallelism) {
+        mVerifier = verifier;
+        mExecutor = executor;
+        mParallelism = Math.max(1, parallelism);
+    }
+
+    /**
+     * Sets whether verified purchases are parsed lazily, see {@link BillingPurchase}.
+     */
+    void setLazyParsing(boolean lazy) {
+        mLazyParsing = lazy;
+    }
+
+    void setMetrics(BillingMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    void setTracing(Tracing tracing) {
+        mTracing = tracing;
+    }
+
+    /**
+     * Verifies every purchase of a page and parses the ones with a valid signature.
+     *
+     * @param itemType         the item type of the page
+     * @param purchaseDataList the purchase data list of the page
+     * @param signatureList    the signature list of the page, matching purchaseDataList
+     * @return an array in the page's order holding the parsed purchase, or null where the
+     * signature verification failed.
+     * @throws JSONException if a verified purchase can't be parsed.
+     */
+    BillingPurchase[] verify(String itemType, List<String> purchaseDataList, List<String> signatureList)
+            throws JSONException {
+        int size = purchaseDataList.size();
+        BillingPurchase[] results = new BillingPurchase[size];
+        int tasks = Math.min(mParallelism, size / MIN_ITEMS_PER_TASK);
+        if (tasks <= 1) {
+            verifyRange(itemType, purchaseDataList, signatureList, results, 0, size);
+            return results;
+        }
+
+        Ranges ranges = new Ranges(itemType, purchaseDataList, signatureList, results, tasks);
+        // The calling thread verifies one range itself, so one worker less is enough.
+        ranges.runWithWorkers(mExecutor, tasks - 1, mTracing, "verifyRange");
+        if (ranges.mError != null) {
+            Exception error = ranges.mError;
+            if (error instanceof JSONException) throw (JSONException) error;
+            throw (RuntimeException) error;
+        }
+        return results;
+    }
+
+    private void verifyRange(String itemType, List<String> purchaseDataList, List<String> signatureList,
+                             BillingPurchase[] results, int from, int to) throws JSONException {
+        for (int i = from; i < to; ++i) {
+            String purchaseData = purchaseDataList.get(i);
+            String signature = signatureList.get(i);
+            BillingMetrics metrics = mMetrics;
+            if (metrics == null) {
+                if (mVerifier.verifyPurchase(purchaseData, signature)) {
+                    results[i] = new BillingPurchase(itemType, purchaseData, signature, mLazyParsing);
+                }
+            } else {
+                results[i] = verifyAndParse(metrics, itemType, purchaseData, signature);
+            }
+        }
+    }
+
+    // Same as the loop body of verifyRange, timing the verification and the parsing
+    private BillingPurchase verifyAndParse(BillingMetrics metrics, String itemType, String purchaseData,
+                                           String signature) throws JSONException {
+        long start = System.nanoTime();
+        boolean verified = mVerifier.verifyPurchase(purchaseData, signature);
+        long parseStart = System.nanoTime();
+        metrics.onOperation(BillingMetrics.Operation.VERIFY_SIGNATURE, verified ? BillingHelper.BILLING_RESPONSE_RESULT_OK
+                : BillingHelper.IABHELPER_VERIFICATION_FAILED, parseStart - start, 0);
+        if (!verified) return null;
+
+        int response = BillingHelper.IABHELPER_BAD_RESPONSE;
+        try {
+            BillingPurchase purchase = new BillingPurchase(itemType, purchaseData, signature, mLazyParsing);
+            response = BillingHelper.BILLING_RESPONSE_RESULT_OK;
+            return purchase;
+        } finally {
+            metrics.onOperation(BillingMetrics.Operation.PARSE_JSON, response, System.nanoTime() - parseStart, 0);
+        }
+    }
+
+    /**
+     * The ranges of one page, taken in turn by every thread verifying it.
+     */
+    private final class Ranges extends ForkedWork {
+        final String mItemType;
+        final List<String> mPurchaseDataList;
+        final List<String> mSignatureList;
+        final BillingPurchase[] mResults;
+        final int mRangeSize;
+        final AtomicInteger mNext = new AtomicInteger(0);
+        volatile Exception mError;
+
+        Ranges(String itemType, List<String> purchaseDataList, List<String> signatureList,
+               BillingPurchase[] results, int tasks) {
+            mItemType = itemType;
+            mPurchaseDataList = purchaseDataList;
+            mSignatureList = signatureList;
+            mResults = results;
+            mRangeSize = (results.length + tasks - 1) / tasks;
+        }
+
+        @Override
+        public void run() {
+            while (mError == null) {
+                int from = mNext.getAndIncrement() * mRangeSize;
+                if (from >= mResults.length) return;
+                try {
+                    verifyRange(mItemType, mPurchaseDataList, mSignatureList, mResults, from,
+                            Math.min(from + mRangeSize, mResults.length));
+                } catch (JSONException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private synchronized void fail(Exception e) {
+            if (mError == null) mError = e;
+        }
+    }
+}
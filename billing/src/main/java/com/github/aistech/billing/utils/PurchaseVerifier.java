@@ -0,0 +1,222 @@
+/* Copyright (c) 2012 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.github.aistech.billing.utils;
+
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import java.security.InvalidKeyException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+
+/**
+ * Verifies purchase signatures against one application public key.
+ * <p>
+ * The Base64-encoded key is decoded and parsed only once, when the verifier is created,
+ * and each thread keeps its own {@link Signature} instance, so verifying a whole page of
+ * purchases costs one key parse instead of one per item. Instances are thread-safe.
+ * <p>
+ * {@link Security} delegates to this class; {@link BillingHelper} builds one verifier
+ * from its public key and reuses it for every purchase it checks.
+ * <p>
+ * A verifier may be given a {@link VerifiedPurchaseCache}, in which case purchases it already
+ * verified successfully are accepted again without checking their signature.
+ */
+public class PurchaseVerifier {
+    private static final String TAG = "BillingUtil/Verifier";
+
+    private static final String KEY_FACTORY_ALGORITHM = "RSA";
+    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+    // One Signature per thread, remembering the key it was last initialized with.
+    private static final ThreadLocal<SignatureHolder> sSignature = new ThreadLocal<SignatureHolder>();
+
+    // Last verifier handed out by forKey(), for callers that only have the encoded key.
+    private static volatile PurchaseVerifier sLastVerifier;
+
+    private final String mBase64PublicKey;
+    private final PublicKey mPublicKey;
+    private final VerifiedPurchaseCache mCache;
+    private final byte[] mKeyFingerprint;
+
+    /**
+     * Creates a verifier for the given key.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying. If empty,
+     *                        every verification fails as if data were missing.
+     * @throws IllegalArgumentException if base64PublicKey is not a valid key
+     */
+    public PurchaseVerifier(String base64PublicKey) {
+        this(base64PublicKey, null);
+    }
+
+    /**
+     * Creates a verifier for the given key, remembering successful verifications in cache.
+     *
+     * @param base64PublicKey the base64-encoded public key to use for verifying. If empty,
+     *                        every verification fails as if data were missing.
+     * @param cache           the cache of verified purchases, or null to always check signatures.
+     * @throws IllegalArgumentException if base64PublicKey is not a valid key
+     */
+    public PurchaseVerifier(String base64PublicKey, VerifiedPurchaseCache cache) {
+        mBase64PublicKey = base64PublicKey;
+        mPublicKey = TextUtils.isEmpty(base64PublicKey) ? null : generatePublicKey(base64PublicKey);
+        mCache = mPublicKey == null ? null : cache;
+        mKeyFingerprint = mCache == null ? null : VerifiedPurchaseCache.fingerprint(mPublicKey);
+    }
+
+    /**
+     * Returns a verifier for the given key, reusing the last one created through this method
+     * when the key is the same.
+     *
+     * @throws IllegalArgumentException if base64PublicKey is not a valid key
+     */
+    public static PurchaseVerifier forKey(String base64PublicKey) {
+        PurchaseVerifier verifier = sLastVerifier;
+        if (verifier == null || !TextUtils.equals(verifier.mBase64PublicKey, base64PublicKey)) {
+            verifier = new PurchaseVerifier(base64PublicKey);
+            sLastVerifier = verifier;
+        }
+        return verifier;
+    }
+
+    /**
+     * Returns the parsed public key, or null if this verifier was created with an empty key.
+     */
+    public PublicKey getPublicKey() {
+        return mPublicKey;
+    }
+
+    /**
+     * Returns the cache of verified purchases, or null if this verifier has none.
+     */
+    public VerifiedPurchaseCache getVerificationCache() {
+        return mCache;
+    }
+
+    /**
+     * Verifies that the data was signed with the given signature.
+     *
+     * @param signedData the signed JSON string (signed, not encrypted)
+     * @param signature  the signature for the data, signed with the private key
+     * @return true if the data and signature match this verifier's key
+     */
+    public boolean verifyPurchase(String signedData, String signature) {
+        if (TextUtils.isEmpty(signedData) || mPublicKey == null || TextUtils.isEmpty(signature)) {
+            Log.e(TAG, "Purchase verification failed: missing data.");
+            return false;
+        }
+        if (mCache == null) {
+            return verify(mPublicKey, signedData, signature);
+        }
+
+        VerifiedPurchaseCache.Digest digest = mCache.digest(mKeyFingerprint, signedData, signature);
+        if (mCache.contains(digest)) {
+            return true;
+        }
+        if (!verify(mPublicKey, signedData, signature)) {
+            return false;
+        }
+        mCache.put(digest);
+        return true;
+    }
+
+    /**
+     * Generates a PublicKey instance from a string containing the
+     * Base64-encoded public key.
+     *
+     * @param encodedPublicKey Base64-encoded public key
+     * @throws IllegalArgumentException if encodedPublicKey is invalid
+     */
+    public static PublicKey generatePublicKey(String encodedPublicKey) {
+        try {
+            byte[] decodedKey = Base64.decode(encodedPublicKey, Base64.DEFAULT);
+            KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
+            return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (InvalidKeySpecException e) {
+            Log.e(TAG, "Invalid key specification.");
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Verifies that the signature from the server matches the computed
+     * signature on the data, using the calling thread's {@link Signature}.
+     *
+     * @param publicKey  public key associated with the developer account
+     * @param signedData signed data from server
+     * @param signature  server signature
+     * @return true if the data and signature match
+     */
+    public static boolean verify(PublicKey publicKey, String signedData, String signature) {
+        byte[] signatureBytes;
+        try {
+            signatureBytes = Base64.decode(signature, Base64.DEFAULT);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Base64 decoding failed.");
+            return false;
+        }
+
+        SignatureHolder holder = sSignature.get();
+        try {
+            if (holder == null) {
+                holder = new SignatureHolder(Signature.getInstance(SIGNATURE_ALGORITHM));
+                sSignature.set(holder);
+            }
+            // A successful verify() resets the Signature to its initialized state, so it only
+            // needs initVerify() again when the key changes or a previous call failed midway.
+            if (holder.key != publicKey) {
+                holder.key = null;
+                holder.signature.initVerify(publicKey);
+                holder.key = publicKey;
+            }
+            holder.signature.update(signedData.getBytes());
+            if (!holder.signature.verify(signatureBytes)) {
+                Log.e(TAG, "Signature verification failed.");
+                return false;
+            }
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "NoSuchAlgorithmException.");
+        } catch (InvalidKeyException e) {
+            Log.e(TAG, "Invalid key specification.");
+        } catch (SignatureException e) {
+            Log.e(TAG, "Signature exception.");
+            holder.key = null;
+        }
+        return false;
+    }
+
+    /**
+     * A thread's reusable {@link Signature} and the key it is currently initialized with.
+     */
+    private static final class SignatureHolder {
+        final Signature signature;
+        PublicKey key;
+
+        SignatureHolder(Signature signature) {
+            this.signature = signature;
+        }
+    }
+}
@@ -16,17 +16,9 @@
 package com.github.aistech.billing.utils;
 
 import android.text.TextUtils;
-import android.util.Base64;
 import android.util.Log;
 
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
-import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
-import java.security.Signature;
-import java.security.SignatureException;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.X509EncodedKeySpec;
 
 /**
  * Security-related methods. For a secure implementation, all of this code
@@ -40,14 +32,14 @@ import java.security.spec.X509EncodedKeySpec;
 public class Security {
     private static final String TAG = "BillingUtil/Security";
 
-    private static final String KEY_FACTORY_ALGORITHM = "RSA";
-    private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
-
     /**
      * Verifies that the data was signed with the given signature, and returns
      * the verified purchase. The data is in JSON format and signed
      * with a private key. The data also contains the PurchaseState
      * and product ID of the purchase.
+     * <p>
+     * The parsed key is kept by {@link PurchaseVerifier#forKey}, so calling this repeatedly
+     * with the same key doesn't parse it again. Prefer holding a {@link PurchaseVerifier}.
      *
      * @param base64PublicKey the base64-encoded public key to use for verifying.
      * @param signedData      the signed JSON string (signed, not encrypted)
@@ -60,8 +52,7 @@ public class Security {
             return false;
         }
 
-        PublicKey key = Security.generatePublicKey(base64PublicKey);
-        return Security.verify(key, signedData, signature);
+        return PurchaseVerifier.forKey(base64PublicKey).verifyPurchase(signedData, signature);
     }
 
     /**
@@ -72,16 +63,7 @@ public class Security {
      * @throws IllegalArgumentException if encodedPublicKey is invalid
      */
     public static PublicKey generatePublicKey(String encodedPublicKey) {
-        try {
-            byte[] decodedKey = Base64.decode(encodedPublicKey, Base64.DEFAULT);
-            KeyFactory keyFactory = KeyFactory.getInstance(KEY_FACTORY_ALGORITHM);
-            return keyFactory.generatePublic(new X509EncodedKeySpec(decodedKey));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        } catch (InvalidKeySpecException e) {
-            Log.e(TAG, "Invalid key specification.");
-            throw new IllegalArgumentException(e);
-        }
+        return PurchaseVerifier.generatePublicKey(encodedPublicKey);
     }
 
     /**
@@ -94,29 +76,6 @@ public class Security {
      * @return true if the data and signature match
      */
     public static boolean verify(PublicKey publicKey, String signedData, String signature) {
-        byte[] signatureBytes;
-        try {
-            signatureBytes = Base64.decode(signature, Base64.DEFAULT);
-        } catch (IllegalArgumentException e) {
-            Log.e(TAG, "Base64 decoding failed.");
-            return false;
-        }
-        try {
-            Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-            sig.initVerify(publicKey);
-            sig.update(signedData.getBytes());
-            if (!sig.verify(signatureBytes)) {
-                Log.e(TAG, "Signature verification failed.");
-                return false;
-            }
-            return true;
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, "NoSuchAlgorithmException.");
-        } catch (InvalidKeyException e) {
-            Log.e(TAG, "Invalid key specification.");
-        } catch (SignatureException e) {
-            Log.e(TAG, "Signature exception.");
-        }
-        return false;
+        return PurchaseVerifier.verify(publicKey, signedData, signature);
     }
 }
@@ -0,0 +1,133 @@
+package com.github.aistech.billing.utils;
+
+import android.os.SystemClock;
+
+import com.github.aistech.billing.model.BillingInventory;
+import com.github.aistech.billing.model.BillingProduct;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory cache of SKU details ({@link BillingProduct}), keyed by item type and sku, so
+ * {@link BillingHelper#queryBillingProduct} only asks the billing service for the SKUs it
+ * doesn't know yet or whose details expired.
+ * <p>
+ * Entries live for a fixed time to live, and the least recently used ones are evicted once
+ * the cache is full. With a stale window, an expired entry is still served for that long
+ * while it is refreshed in background (stale-while-revalidate).
+ * <p>
+ * This class is thread-safe.
+ */
+public class SkuDetailsCache {
+
+    public static final int DEFAULT_MAX_SIZE = 500;
+    public static final long DEFAULT_TTL_MILLIS = 6 * 60 * 60 * 1000L;
+
+    private final int maxSize;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final LinkedHashMap<String, CachedDetails> entries;
+
+    /**
+     * Creates a cache of {@link #DEFAULT_MAX_SIZE} entries living {@link #DEFAULT_TTL_MILLIS},
+     * without stale-while-revalidate.
+     */
+    public SkuDetailsCache() {
+        this(DEFAULT_MAX_SIZE, DEFAULT_TTL_MILLIS, 0L);
+    }
+
+    /**
+     * @param maxSize     The maximum number of SKUs kept; the least recently used are evicted.
+     * @param ttlMillis   How long fetched details are served without asking the service again.
+     * @param staleMillis How long after expiring details are still served while they are
+     *                    refreshed in background, or 0 to fetch expired details right away.
+     */
+    public SkuDetailsCache(final int maxSize, long ttlMillis, long staleMillis) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1.");
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+        this.entries = new LinkedHashMap<String, CachedDetails>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDetails> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Adds the cached details of the given SKUs to the inventory.
+     *
+     * @param itemType The item type of the SKUs.
+     * @param skus     The SKUs needed.
+     * @param inv      The inventory receiving the cached details.
+     * @param stale    Receives the SKUs served stale, which should be refreshed in background.
+     * @return the SKUs that are missing or expired and must be fetched now.
+     */
+    public synchronized List<String> fill(String itemType, List<String> skus, BillingInventory.Builder inv,
+                                          List<String> stale) {
+        long now = SystemClock.elapsedRealtime();
+        List<String> missing = new ArrayList<String>();
+        for (String sku : skus) {
+            CachedDetails entry = entries.get(key(itemType, sku));
+            if (entry == null) {
+                missing.add(sku);
+                continue;
+            }
+            long age = now - entry.fetchedAt;
+            if (age <= ttlMillis) {
+                inv.addBillingProduct(entry.product);
+            } else if (age - ttlMillis <= staleMillis) {
+                inv.addBillingProduct(entry.product);
+                stale.add(sku);
+            } else {
+                missing.add(sku);
+            }
+        }
+        return missing;
+    }
+
+    /**
+     * Stores freshly fetched details.
+     */
+    public synchronized void put(BillingProduct product) {
+        entries.put(key(product.getItemType(), product.getSku()),
+                new CachedDetails(product, SystemClock.elapsedRealtime()));
+    }
+
+    /**
+     * Forgets the details of the given SKU, for example after its price changed.
+     */
+    public synchronized void remove(String itemType, String sku) {
+        entries.remove(key(itemType, sku));
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    private static String key(String itemType, String sku) {
+        return itemType + ':' + sku;
+    }
+
+    private static final class CachedDetails {
+        final BillingProduct product;
+        final long fetchedAt;
+
+        CachedDetails(BillingProduct product, long fetchedAt) {
+            this.product = product;
+            this.fetchedAt = fetchedAt;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.github.aistech.billing.utils;
+
+import android.os.RemoteException;
+
+import com.github.aistech.billing.model.BillingInventory;
+import com.github.aistech.billing.model.BillingProduct;
+
+import org.json.JSONException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fetches the packs of a getSkuDetails query concurrently, keeping at most a configurable
+ * number of calls to the billing service in flight.
+ * <p>
+ * The calling thread and up to {@code maxInFlight - 1} workers on the helper's
+ * {@link BillingExecutor} take the packs in turn, each one parsing its response while the
+ * others wait on the service. Once a pack fails, no new pack is sent. The products are added to
+ * the inventory in the order of the packs.
+ */
+final class SkuDetailsFetcher {
+
+    static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private final BillingHelper mHelper;
+    private volatile int mMaxInFlight = DEFAULT_MAX_IN_FLIGHT;
+
+    SkuDetailsFetcher(BillingHelper helper) {
+        mHelper = helper;
+    }
+
+    void setMaxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight must be at least 1.");
+        mMaxInFlight = maxInFlight;
+    }
+
+    int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    /**
+     * Fetches all the packs and adds the products to the inventory.
+     *
+     * @return BILLING_RESPONSE_RESULT_OK, or the response code of the first pack that failed.
+     */
+    int fetch(String itemType, List<ArrayList<String>> packs, BillingInventory.Builder inv)
+            throws RemoteException, JSONException {
+        Pipeline pipeline = new Pipeline(itemType, packs);
+        int workers = Math.min(mMaxInFlight, packs.size()) - 1;
+        pipeline.runWithWorkers(mHelper.mExecutor, workers, mHelper.mTracing, "skuDetailsWorker");
+
+        if (pipeline.mError != null) {
+            Exception error = pipeline.mError;
+            if (error instanceof RemoteException) throw (RemoteException) error;
+            if (error instanceof JSONException) throw (JSONException) error;
+            throw (RuntimeException) error;
+        }
+        int failure = pipeline.mFailure.get();
+        if (failure != BillingHelper.BILLING_RESPONSE_RESULT_OK) {
+            return failure;
+        }
+        for (int i = 0; i < packs.size(); i++) {
+            for (BillingProduct product : pipeline.mResults.get(i)) {
+                inv.addBillingProduct(product);
+            }
+        }
+        return BillingHelper.BILLING_RESPONSE_RESULT_OK;
+    }
+
+    /**
+     * The packs of one query, taken in turn by every thread running it.
+     */
+    private final class Pipeline extends ForkedWork {
+        final String mItemType;
+        final List<ArrayList<String>> mPacks;
+        final AtomicReferenceArray<List<BillingProduct>> mResults;
+        final AtomicInteger mNext = new AtomicInteger(0);
+        final AtomicInteger mFailure = new AtomicInteger(BillingHelper.BILLING_RESPONSE_RESULT_OK);
+        volatile Exception mError;
+
+        Pipeline(String itemType, List<ArrayList<String>> packs) {
+            mItemType = itemType;
+            mPacks = packs;
+            mResults = new AtomicReferenceArray<List<BillingProduct>>(packs.size());
+        }
+
+        @Override
+        public void run() {
+            while (mError == null && mFailure.get() == BillingHelper.BILLING_RESPONSE_RESULT_OK) {
+                int index = mNext.getAndIncrement();
+                if (index >= mPacks.size()) return;
+                try {
+                    List<BillingProduct> products = new ArrayList<BillingProduct>();
+                    int response = mHelper.querySkuDetailsPack(mItemType, mPacks.get(index), products);
+                    if (response != BillingHelper.BILLING_RESPONSE_RESULT_OK) {
+                        mFailure.compareAndSet(BillingHelper.BILLING_RESPONSE_RESULT_OK, response);
+                        return;
+                    }
+                    mResults.set(index, products);
+                } catch (RemoteException e) {
+                    fail(e);
+                } catch (JSONException e) {
+                    fail(e);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            }
+        }
+
+        private synchronized void fail(Exception e) {
+            if (mError == null) mError = e;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.metrics.BillingTracer;
+
+/**
+ * Starts the spans of the helper on its {@link BillingTracer}, keeping track of the current
+ * span of each thread so that spans nest without being passed around.
+ * <p>
+ * Work handed to another thread keeps its place in the tree by going through
+ * {@link #wrap(String, Runnable)}. While no tracer is set, every method returns right after
+ * reading a volatile field, and {@link #start} returns null; {@link #end} and {@link #tag}
+ * accept that null.
+ * <pre>
+ * Tracing.Scope span = mTracing.start("getPurchases");
+ * try {
+ *     ...
+ * } finally {
+ *     Tracing.end(span);
+ * }
+ * </pre>
+ */
+final class Tracing {
+
+    private volatile BillingTracer mTracer;
+    private final ThreadLocal<BillingTracer.Span> mCurrent = new ThreadLocal<BillingTracer.Span>();
+
+    void setTracer(BillingTracer tracer) {
+        mTracer = tracer;
+    }
+
+    /**
+     * Starts a span, child of the current span of this thread, and makes it the current one
+     * until it is ended, on this same thread.
+     *
+     * @return the scope of the span, or null if no tracer is set.
+     */
+    Scope start(String name) {
+        BillingTracer tracer = mTracer;
+        if (tracer == null) return null;
+        return enter(tracer.startSpan(name, mCurrent.get()));
+    }
+
+    /**
+     * Starts a span, child of the current span of this thread, without making it current:
+     * for spans that end on another thread. See {@link #resume}.
+     *
+     * @return the span, or null if no tracer is set.
+     */
+    BillingTracer.Span startDetached(String name) {
+        BillingTracer tracer = mTracer;
+        if (tracer == null) return null;
+        return tracer.startSpan(name, mCurrent.get());
+    }
+
+    /**
+     * Same as {@link #startDetached(String)}, as a child of the given span.
+     */
+    BillingTracer.Span startDetached(String name, BillingTracer.Span parent) {
+        BillingTracer tracer = mTracer;
+        if (tracer == null) return null;
+        return tracer.startSpan(name, parent);
+    }
+
+    /**
+     * Makes a span started with {@link #startDetached} the current one of this thread, until
+     * the returned scope is ended, which also ends the span.
+     *
+     * @return the scope of the span, or null if span is null.
+     */
+    Scope resume(BillingTracer.Span span) {
+        return span != null ? enter(span) : null;
+    }
+
+    /**
+     * Returns work that runs within a span, child of the current span of this thread. The span
+     * starts now, so it also covers the time the work waits in a queue or a Handler.
+     *
+     * @return the wrapped work, or work itself if no tracer is set.
+     */
+    Runnable wrap(String name, final Runnable work) {
+        final BillingTracer.Span span = startDetached(name);
+        if (span == null) return work;
+        return new Runnable() {
+            @Override
+            public void run() {
+                Scope scope = resume(span);
+                try {
+                    work.run();
+                } finally {
+                    end(scope);
+                }
+            }
+        };
+    }
+
+    private Scope enter(BillingTracer.Span span) {
+        Scope scope = new Scope(span, mCurrent.get());
+        mCurrent.set(span);
+        return scope;
+    }
+
+    /**
+     * Ends a span, restoring the span that was current when it started. Does nothing if
+     * scope is null.
+     */
+    static void end(Scope scope) {
+        if (scope != null) scope.end();
+    }
+
+    /**
+     * Tags a span. Does nothing if scope is null.
+     */
+    static void tag(Scope scope, String key, Object value) {
+        if (scope != null) scope.mSpan.setTag(key, value);
+    }
+
+    /**
+     * A span made current on a thread.
+     */
+    final class Scope {
+        final BillingTracer.Span mSpan;
+        private final BillingTracer.Span mPrevious;
+
+        Scope(BillingTracer.Span span, BillingTracer.Span previous) {
+            mSpan = span;
+            mPrevious = previous;
+        }
+
+        void end() {
+            if (mPrevious != null) {
+                mCurrent.set(mPrevious);
+            } else {
+                mCurrent.remove();
+            }
+            mSpan.end();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.github.aistech.billing.utils;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the purchases whose signature was already verified, so refreshing an inventory
+ * doesn't run the RSA verification again on byte-identical purchase data and signatures.
+ * <p>
+ * Entries are keyed by a SHA-256 digest of the public key, the signed data and the signature,
+ * so the cache holds 32 bytes per purchase rather than its JSON, and a match can only come
+ * from the exact same triple. Only successful verifications are stored: a failed one is always
+ * checked again. The least recently used entries are evicted once the cache is full.
+ * <p>
+ * The default size holds the owned purchases of ten full getPurchases pages, about 100 KB;
+ * pass a larger cache to {@link BillingHelper} for apps whose users own more.
+ * <p>
+ * This class is thread-safe.
+ */
+public class VerifiedPurchaseCache {
+
+    public static final int DEFAULT_MAX_SIZE = 1024;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // One MessageDigest per thread, as the verification stage hashes from several threads.
+    private static final ThreadLocal<MessageDigest> sDigest = new ThreadLocal<MessageDigest>();
+
+    private final int maxSize;
+    private final LinkedHashMap<Digest, Boolean> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Creates a cache of {@link #DEFAULT_MAX_SIZE} entries.
+     */
+    public VerifiedPurchaseCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize The maximum number of verified purchases kept; the least recently used are evicted.
+     */
+    public VerifiedPurchaseCache(final int maxSize) {
+        if (maxSize < 1) throw new IllegalArgumentException("maxSize must be at least 1.");
+        this.maxSize = maxSize;
+        this.entries = new LinkedHashMap<Digest, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Digest, Boolean> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * Computes the key of a purchase, to pass to {@link #contains} and {@link #put}.
+     *
+     * @param keyFingerprint The digest of the public key, see {@link #fingerprint}.
+     */
+    Digest digest(byte[] keyFingerprint, String signedData, String signature) {
+        MessageDigest md = getMessageDigest();
+        md.update(keyFingerprint);
+        // Length-prefix the data so no other (data, signature) split gives the same digest.
+        byte[] data = signedData.getBytes(UTF_8);
+        updateInt(md, data.length);
+        md.update(data);
+        md.update(signature.getBytes(UTF_8));
+        return new Digest(md.digest());
+    }
+
+    /**
+     * Returns whether the purchase was verified before, counting a hit or a miss.
+     */
+    boolean contains(Digest digest) {
+        boolean found;
+        synchronized (this) {
+            found = entries.get(digest) != null;
+        }
+        (found ? hits : misses).incrementAndGet();
+        return found;
+    }
+
+    /**
+     * Records a successful verification.
+     */
+    synchronized void put(Digest digest) {
+        entries.put(digest, Boolean.TRUE);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Returns how many verifications were answered from the cache.
+     */
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * Returns how many verifications had to run the signature check.
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Computes the digest identifying a public key, once per verifier.
+     */
+    static byte[] fingerprint(PublicKey publicKey) {
+        return getMessageDigest().digest(publicKey.getEncoded());
+    }
+
+    private static MessageDigest getMessageDigest() {
+        MessageDigest md = sDigest.get();
+        if (md == null) {
+            try {
+                md = MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+            sDigest.set(md);
+        }
+        return md;
+    }
+
+    private static void updateInt(MessageDigest md, int value) {
+        md.update((byte) (value >>> 24));
+        md.update((byte) (value >>> 16));
+        md.update((byte) (value >>> 8));
+        md.update((byte) value);
+    }
+
+    /**
+     * A purchase digest, usable as a map key.
+     */
+    static final class Digest {
+        private final byte[] bytes;
+        private final int hash;
+
+        Digest(byte[] bytes) {
+            this.bytes = bytes;
+            this.hash = Arrays.hashCode(bytes);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Digest && Arrays.equals(bytes, ((Digest) o).bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
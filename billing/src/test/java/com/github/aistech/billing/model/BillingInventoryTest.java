@@ -0,0 +1,155 @@
+package com.github.aistech.billing.model;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link BillingInventory} and its {@link BillingInventory.Builder}, on the JVM.
+ */
+public class BillingInventoryTest {
+
+    @Test
+    public void build_isNotAffectedByLaterChanges() throws Exception {
+        BillingInventory.Builder builder = new BillingInventory.Builder()
+                .addPurchase(purchase("inapp", "gem", "t1", 10));
+        BillingInventory first = builder.build();
+
+        builder.addPurchase(purchase("inapp", "coin", "t2", 20)).erasePurchase("gem");
+        BillingInventory second = builder.build();
+
+        assertTrue(first.hasPurchase("gem"));
+        assertFalse(first.hasPurchase("coin"));
+        assertEquals(Collections.singletonList("gem"), first.getAllOwnedBillingProduct("inapp"));
+        assertNotNull(first.getPurchaseByToken("t1"));
+        assertNull(first.getPurchaseByToken("t2"));
+
+        assertFalse(second.hasPurchase("gem"));
+        assertTrue(second.hasPurchase("coin"));
+        assertEquals(Collections.singletonList("coin"), second.getAllOwnedBillingProduct("inapp"));
+        assertNull(second.getPurchaseByToken("t1"));
+    }
+
+    @Test
+    public void withoutPurchase_leavesOriginalUnchanged() throws Exception {
+        BillingInventory inv = new BillingInventory.Builder()
+                .addBillingProduct(product("gem"))
+                .addPurchase(purchase("inapp", "gem", "t1", 10))
+                .addPurchase(purchase("inapp", "coin", "t2", 20))
+                .addPurchase(purchase("subs", "vip", "t3", 30))
+                .build();
+
+        BillingInventory erased = inv.withoutPurchase("gem");
+
+        assertTrue(inv.hasPurchase("gem"));
+        assertEquals(3, inv.getAllPurchases().size());
+        assertSame(inv.getPurchase("gem"), inv.getPurchaseByToken("t1"));
+        assertEquals(Arrays.asList("gem", "coin"), inv.getAllOwnedBillingProduct("inapp"));
+
+        assertFalse(erased.hasPurchase("gem"));
+        assertNull(erased.getPurchaseByToken("t1"));
+        assertEquals(Collections.singletonList("coin"), erased.getAllOwnedBillingProduct("inapp"));
+        assertEquals(2, erased.getPurchasesByTime().size());
+    }
+
+    @Test
+    public void withoutPurchase_sharesWhatItDoesNotTouch() throws Exception {
+        BillingInventory inv = new BillingInventory.Builder()
+                .addBillingProduct(product("gem"))
+                .addPurchase(purchase("inapp", "gem", "t1", 10))
+                .addPurchase(purchase("subs", "vip", "t3", 30))
+                .build();
+
+        BillingInventory erased = inv.withoutPurchase("gem");
+
+        assertSame(inv.getProductCatalog(), erased.getProductCatalog());
+        assertSame(inv.getPurchase("vip"), erased.getPurchase("vip"));
+        assertEquals(inv.getPurchases("subs"), erased.getPurchases("subs"));
+        assertTrue(erased.hasDetails("gem"));
+    }
+
+    @Test
+    public void withoutPurchase_returnsSameInventoryWithoutPurchase() throws Exception {
+        BillingInventory inv = new BillingInventory.Builder()
+                .addPurchase(purchase("inapp", "gem", "t1", 10))
+                .build();
+        assertSame(inv, inv.withoutPurchase("coin"));
+    }
+
+    @Test
+    public void builderFromSnapshot_leavesSnapshotUnchanged() throws Exception {
+        BillingInventory base = new BillingInventory.Builder()
+                .addBillingProduct(product("gem"))
+                .addPurchase(purchase("inapp", "gem", "t1", 10))
+                .build();
+
+        BillingInventory changed = new BillingInventory.Builder(base)
+                .addBillingProduct(product("coin"))
+                .addPurchase(purchase("inapp", "gem", "t9", 50))
+                .addPurchase(purchase("subs", "vip", "t3", 30))
+                .build();
+
+        assertEquals("t1", base.getPurchase("gem").getToken());
+        assertNull(base.getPurchaseByToken("t9"));
+        assertTrue(base.getPurchases("subs").isEmpty());
+        assertFalse(base.hasDetails("coin"));
+
+        assertEquals("t9", changed.getPurchase("gem").getToken());
+        assertNull(changed.getPurchaseByToken("t1"));
+        assertTrue(changed.hasDetails("gem"));
+        assertTrue(changed.hasDetails("coin"));
+        assertEquals(1, changed.getPurchases("subs").size());
+    }
+
+    @Test
+    public void getPurchasesBetween_usesHalfOpenRange() throws Exception {
+        BillingInventory inv = new BillingInventory.Builder()
+                .addPurchase(purchase("inapp", "c", "t3", 30))
+                .addPurchase(purchase("inapp", "a", "t1", 10))
+                .addPurchase(purchase("inapp", "b", "t2", 20))
+                .build();
+
+        assertEquals(Arrays.asList("a", "b", "c"), skus(inv.getPurchasesByTime()));
+        assertEquals(Arrays.asList("b", "c"), skus(inv.getPurchasesBetween(20, 31)));
+        assertTrue(inv.getPurchasesBetween(11, 20).isEmpty());
+    }
+
+    @Test
+    public void build_keepsTheProductsItWasGiven() throws Exception {
+        BillingProduct gem = new BillingProduct("inapp", "{\"productId\":\"gem\",\"price\":\"$1\"}", true);
+        BillingProduct coin = product("coin");
+        BillingInventory inv = new BillingInventory.Builder()
+                .addBillingProduct(gem)
+                .addBillingProduct(coin)
+                .build();
+        BillingInventory rebuilt = new BillingInventory.Builder(inv).addBillingProduct(product("vip")).build();
+
+        BillingProductCatalog catalog = rebuilt.getProductCatalog();
+        assertSame(gem, catalog.get("gem"));
+        assertSame(catalog.get("gem"), catalog.get(catalog.indexOf("gem")));
+        assertSame(coin, inv.getBillingProducts("coin"));
+        assertEquals("$1", catalog.getPrice(catalog.indexOf("gem")));
+    }
+
+    private static BillingPurchase purchase(String itemType, String sku, String token, long time) throws Exception {
+        return new BillingPurchase(itemType, "{\"productId\":\"" + sku + "\",\"purchaseToken\":\"" + token +
+                "\",\"purchaseTime\":" + time + "}", "sig");
+    }
+
+    private static BillingProduct product(String sku) throws Exception {
+        return new BillingProduct("inapp", "{\"productId\":\"" + sku + "\",\"price\":\"$1\"}");
+    }
+
+    private static List<String> skus(List<BillingPurchase> purchases) {
+        List<String> skus = new ArrayList<String>();
+        for (BillingPurchase purchase : purchases) {
+            skus.add(purchase.getSku());
+        }
+        return skus;
+    }
+}
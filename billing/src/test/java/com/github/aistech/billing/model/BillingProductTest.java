@@ -0,0 +1,75 @@
+package com.github.aistech.billing.model;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the parsing of {@link BillingProduct}, eager and lazy, on the JVM.
+ */
+public class BillingProductTest {
+
+    private static final String JSON = "{\"productId\":\"diamond_pack\",\"type\":\"inapp\"," +
+            "\"price\":\"R$3.19\",\"price_amount_micros\":3190000,\"price_currency_code\":\"BRL\"," +
+            "\"title\":\"Diamante (Mapa da Sa\\u00fade)\",\"description\":\"\\\"Brilha\\\"\\nmuito\"," +
+            "\"skuDetailsToken\":\"AEuhp4Kd\",\"introductoryPricePeriod\":{\"unit\":[\"P1W\"]}}";
+
+    @Test
+    public void parse_readsAllFields() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingProduct product = new BillingProduct("inapp", JSON, lazy);
+            assertEquals("diamond_pack", product.getSku());
+            assertEquals("inapp", product.getItemType());
+            assertEquals("inapp", product.getType());
+            assertEquals("R$3.19", product.getPrice());
+            assertEquals(3190000, product.getPriceMicros());
+            assertEquals("BRL", product.getPriceCurrencyCode());
+            assertEquals("Diamante (Mapa da Sa\u00fade)", product.getTitle());
+            assertEquals("\"Brilha\"\nmuito", product.getDescription());
+            assertEquals(JSON, product.getJson());
+        }
+    }
+
+    @Test
+    public void parse_defaultsMissingFields() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingProduct product = new BillingProduct("subs", "{\"productId\":\"sku\"}", lazy);
+            assertEquals("sku", product.getSku());
+            assertEquals("", product.getType());
+            assertEquals("", product.getPrice());
+            assertEquals(0, product.getPriceMicros());
+            assertEquals("", product.getPriceCurrencyCode());
+            assertEquals("", product.getTitle());
+            assertEquals("", product.getDescription());
+        }
+    }
+
+    @Test
+    public void parse_readsLongBoundary() throws Exception {
+        BillingProduct product = new BillingProduct("inapp", "{\"price_amount_micros\":9223372036854775807}");
+        assertEquals(Long.MAX_VALUE, product.getPriceMicros());
+    }
+
+    @Test
+    public void parse_fallsBackToJsonObject() throws Exception {
+        String json = "{\"productId\":\"sku\",\"price_amount_micros\":\"990000\",\"title\":'Gems'}";
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingProduct product = new BillingProduct("inapp", json, lazy);
+            assertEquals("sku", product.getSku());
+            assertEquals(990000, product.getPriceMicros());
+            assertEquals("Gems", product.getTitle());
+        }
+    }
+
+    @Test
+    public void parse_rejectsInvalidJson() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            try {
+                new BillingProduct("inapp", "{\"productId\":", lazy);
+                fail();
+            } catch (JSONException expected) {
+            }
+        }
+    }
+}
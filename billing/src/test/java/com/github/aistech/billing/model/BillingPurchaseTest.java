@@ -0,0 +1,103 @@
+package com.github.aistech.billing.model;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of the parsing of {@link BillingPurchase}, eager and lazy, on the JVM.
+ */
+public class BillingPurchaseTest {
+
+    private static final String JSON = "{\"orderId\":\"GPA.1234-5678\",\"packageName\":\"com.example\"," +
+            "\"productId\":\"diamond_pack\",\"purchaseTime\":1476912345678,\"purchaseState\":1," +
+            "\"developerPayload\":\"user:42\\/session \\\"vip\\\" \\u00e9\",\"purchaseToken\":\"tok.AO-J1\"," +
+            "\"autoRenewing\":true,\"acknowledged\":true,\"extra\":{\"nested\":[1,\"}\"]}}";
+
+    @Test
+    public void parse_readsAllFields() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingPurchase purchase = new BillingPurchase("subs", JSON, "sig", lazy);
+            assertEquals("subs", purchase.getItemType());
+            assertEquals("GPA.1234-5678", purchase.getOrderId());
+            assertEquals("com.example", purchase.getPackageName());
+            assertEquals("diamond_pack", purchase.getSku());
+            assertEquals(1476912345678L, purchase.getPurchaseTimeMillis());
+            assertEquals(1, purchase.getPurchaseStateCode());
+            assertEquals("user:42/session \"vip\" \u00e9", purchase.getDeveloperPayload());
+            assertEquals("tok.AO-J1", purchase.getToken());
+            assertTrue(purchase.isAutoRenewing());
+            assertEquals(JSON, purchase.getOriginalJson());
+            assertEquals("sig", purchase.getSignature());
+        }
+    }
+
+    @Test
+    public void parse_defaultsMissingFields() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingPurchase purchase = new BillingPurchase("inapp", "{}", "sig", lazy);
+            assertEquals("", purchase.getOrderId());
+            assertEquals("", purchase.getPackageName());
+            assertEquals("", purchase.getSku());
+            assertEquals(0, purchase.getPurchaseTimeMillis());
+            assertEquals(0, purchase.getPurchaseStateCode());
+            assertEquals("", purchase.getDeveloperPayload());
+            assertEquals("", purchase.getToken());
+            assertFalse(purchase.isAutoRenewing());
+        }
+    }
+
+    @Test
+    public void parse_prefersTokenOverPurchaseToken() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingPurchase purchase = new BillingPurchase("inapp",
+                    "{\"purchaseToken\":\"second\",\"token\":\"first\"}", "sig", lazy);
+            assertEquals("first", purchase.getToken());
+        }
+    }
+
+    @Test
+    public void parse_readsLongAndIntBoundaries() throws Exception {
+        BillingPurchase purchase = new BillingPurchase("inapp",
+                "{\"purchaseTime\":9223372036854775807,\"purchaseState\":-2147483648}", "sig");
+        assertEquals(Long.MAX_VALUE, purchase.getPurchaseTimeMillis());
+        assertEquals(Integer.MIN_VALUE, purchase.getPurchaseStateCode());
+    }
+
+    @Test
+    public void parse_fallsBackToJsonObject() throws Exception {
+        // Shapes the scanner doesn't take, which JSONObject coerces or accepts.
+        String json = "{\"productId\":\"sku\",\"purchaseTime\":1.5E12,\"purchaseState\":\"2\"," +
+                "\"autoRenewing\":\"true\"}";
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingPurchase purchase = new BillingPurchase("inapp", json, "sig", lazy);
+            assertEquals("sku", purchase.getSku());
+            assertEquals(1500000000000L, purchase.getPurchaseTimeMillis());
+            assertEquals(2, purchase.getPurchaseStateCode());
+            assertTrue(purchase.isAutoRenewing());
+        }
+    }
+
+    @Test
+    public void parse_fallsBackToJsonObjectOnLenientSyntax() throws Exception {
+        String json = "{productId:'sku', purchaseToken:'tok', purchaseTime:-9223372036854775808}";
+        for (boolean lazy : new boolean[]{false, true}) {
+            BillingPurchase purchase = new BillingPurchase("inapp", json, "sig", lazy);
+            assertEquals("sku", purchase.getSku());
+            assertEquals("tok", purchase.getToken());
+            assertEquals(Long.MIN_VALUE, purchase.getPurchaseTimeMillis());
+        }
+    }
+
+    @Test
+    public void parse_rejectsInvalidJson() throws Exception {
+        for (boolean lazy : new boolean[]{false, true}) {
+            try {
+                new BillingPurchase("inapp", "not json", "sig", lazy);
+                fail();
+            } catch (JSONException expected) {
+            }
+        }
+    }
+}
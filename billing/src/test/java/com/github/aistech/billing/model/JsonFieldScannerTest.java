@@ -0,0 +1,170 @@
+package com.github.aistech.billing.model;
+
+import org.json.JSONException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link JsonFieldScanner}, on the JVM.
+ */
+public class JsonFieldScannerTest {
+
+    @Test
+    public void scan_readsTopLevelFields() throws Exception {
+        String[] values = JsonFieldScanner.scan("{\"productId\":\"sku\",\"purchaseToken\":\"tok\"}",
+                "purchaseToken", "productId");
+        assertArrayEquals(new String[]{"tok", "sku"}, values);
+    }
+
+    @Test
+    public void scan_unescapesValues() throws Exception {
+        String[] values = JsonFieldScanner.scan("{\"a\":\"say \\\"hi\\\"\",\"b\":\"Sa\\u00fade \\u20AC\"," +
+                "\"c\":\"a\\\\b\\/c\\n\\t\\r\\b\\f\"}", "a", "b", "c");
+        assertEquals("say \"hi\"", values[0]);
+        assertEquals("Sa\u00fade \u20ac", values[1]);
+        assertEquals("a\\b/c\n\t\r\b\f", values[2]);
+    }
+
+    @Test
+    public void scan_matchesEscapedKeys() throws Exception {
+        String[] values = JsonFieldScanner.scan("{\"product\\u0049d\":\"sku\",\"a\\\"b\":\"quoted\"}",
+                "productId", "a\"b");
+        assertEquals("sku", values[0]);
+        assertEquals("quoted", values[1]);
+    }
+
+    @Test
+    public void scan_skipsUnknownAndNestedFields() throws Exception {
+        String json = "{\"x\":{\"a\":[1,{\"b\":\"}]\\\"\"}],\"c\":{}},\"y\":[],\"z\":null," +
+                "\"productId\":\"sku\",\"w\":[[\"\\u005d\"]]}";
+        assertArrayEquals(new String[]{"sku"}, JsonFieldScanner.scan(json, "productId"));
+    }
+
+    @Test
+    public void scan_returnsNullForNestedValues() throws Exception {
+        String[] values = JsonFieldScanner.scan("{\"o\":{\"a\":1},\"l\":[1,2]}", "o", "l");
+        assertNull(values[0]);
+        assertNull(values[1]);
+    }
+
+    @Test
+    public void scan_returnsNullForMissingFields() throws Exception {
+        String[] values = JsonFieldScanner.scan("{\"productId\":\"sku\"}", "productId", "token");
+        assertEquals("sku", values[0]);
+        assertNull(values[1]);
+        assertNull(JsonFieldScanner.scan("{}", "productId")[0]);
+    }
+
+    @Test
+    public void scan_returnsScalarsAsText() throws Exception {
+        String[] values = JsonFieldScanner.scan("{ \"n\" : -12 ,\n\"t\":true,\t\"f\":false }", "n", "t", "f");
+        assertArrayEquals(new String[]{"-12", "true", "false"}, values);
+    }
+
+    @Test
+    public void scan_keepsLastDuplicate() throws Exception {
+        assertEquals("second", JsonFieldScanner.scan("{\"k\":\"first\",\"k\":\"second\"}", "k")[0]);
+    }
+
+    @Test
+    public void readLong_acceptsLongBoundaries() throws Exception {
+        assertEquals(Long.MAX_VALUE, readLong("9223372036854775807"));
+        assertEquals(-Long.MAX_VALUE, readLong("-9223372036854775807"));
+        assertEquals(0, readLong("0"));
+    }
+
+    @Test
+    public void readLong_rejectsOverflow() throws Exception {
+        assertMalformedNumber("9223372036854775808", false);
+        assertMalformedNumber("99999999999999999999", false);
+    }
+
+    @Test
+    public void readLong_rejectsNonIntegralNumbers() throws Exception {
+        assertMalformedNumber("1.5", false);
+        assertMalformedNumber("1e3", false);
+        assertMalformedNumber("\"1\"", false);
+        assertMalformedNumber("-", false);
+    }
+
+    @Test
+    public void readInt_acceptsIntBoundaries() throws Exception {
+        assertEquals(Integer.MAX_VALUE, readInt("2147483647"));
+        assertEquals(Integer.MIN_VALUE, readInt("-2147483648"));
+    }
+
+    @Test
+    public void readInt_rejectsOverflow() throws Exception {
+        assertMalformedNumber("2147483648", true);
+        assertMalformedNumber("-2147483649", true);
+    }
+
+    @Test
+    public void readBoolean_rejectsOtherLiterals() throws Exception {
+        JsonFieldScanner scanner = new JsonFieldScanner("{\"b\":truex}");
+        assertTrue(scanner.nextField());
+        scanner.matchKey(new String[]{"b"});
+        try {
+            scanner.readBoolean();
+            fail();
+        } catch (JSONException expected) {
+        }
+    }
+
+    @Test
+    public void scan_rejectsMalformedJson() throws Exception {
+        String[] malformed = {
+                "", "[]", "{", "{\"a\"}", "{\"a\":}", "{\"a\":\"b\"", "{\"a\":\"b}", "{\"a\":\"b\",}",
+                "{\"a\":\"b\"} x", "{\"a\":\"\\x\"}", "{\"a\":\"\\u12\"}", "{\"a\" \"b\"}", "{a:\"b\"}",
+                "{\"a\":{\"b\":1}", "{\"a\":[1,2}"
+        };
+        for (String json : malformed) {
+            try {
+                JsonFieldScanner.scan(json, "a");
+                fail("Accepted " + json);
+            } catch (JSONException expected) {
+            }
+        }
+    }
+
+    @Test(expected = JSONException.class)
+    public void scan_rejectsNull() throws Exception {
+        JsonFieldScanner.scan(null, "a");
+    }
+
+    private static long readLong(String literal) throws JSONException {
+        JsonFieldScanner scanner = scannerAt(literal);
+        long value = scanner.readLong();
+        assertFalse(scanner.nextField());
+        return value;
+    }
+
+    private static int readInt(String literal) throws JSONException {
+        JsonFieldScanner scanner = scannerAt(literal);
+        int value = scanner.readInt();
+        assertFalse(scanner.nextField());
+        return value;
+    }
+
+    private static void assertMalformedNumber(String literal, boolean asInt) throws JSONException {
+        JsonFieldScanner scanner = scannerAt(literal);
+        try {
+            if (asInt) {
+                scanner.readInt();
+            } else {
+                scanner.readLong();
+            }
+            fail("Accepted " + literal);
+        } catch (JSONException expected) {
+        }
+    }
+
+    // A scanner positioned on the value of the only field of {"n":literal}
+    private static JsonFieldScanner scannerAt(String literal) throws JSONException {
+        JsonFieldScanner scanner = new JsonFieldScanner("{\"n\":" + literal + "}");
+        assertTrue(scanner.nextField());
+        assertEquals(0, scanner.matchKey(new String[]{"n"}));
+        return scanner;
+    }
+}
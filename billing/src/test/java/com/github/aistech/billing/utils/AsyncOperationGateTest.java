@@ -0,0 +1,117 @@
+package com.github.aistech.billing.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link AsyncOperationGate}, on the JVM.
+ */
+public class AsyncOperationGateTest {
+
+    private final AsyncOperationGate gate = new AsyncOperationGate();
+
+    @Test
+    public void sharedOperations_runTogether() throws Exception {
+        gate.enterShared("query 1");
+        gate.enterShared("query 2");
+        Object ticket = gate.enterConsume("consume", Collections.singletonList("token"));
+        gate.exitShared();
+        gate.exitShared();
+        gate.exitConsume(ticket, Collections.singletonList("token"));
+        assertEquals("", gate.describe());
+    }
+
+    @Test
+    public void exclusive_conflictsWithShared() throws Exception {
+        gate.enterShared("query");
+        assertRefusedExclusive("purchase");
+        gate.exitShared();
+
+        gate.enterExclusive("purchase");
+        assertRefusedShared("query");
+        assertRefusedExclusive("purchase 2");
+        assertEquals("purchase", gate.describe());
+        gate.exitExclusive();
+
+        gate.enterShared("query");
+        gate.exitShared();
+    }
+
+    @Test
+    public void consume_conflictsOnSharedTokens() throws Exception {
+        List<String> first = Arrays.asList("a", "b");
+        Object ticket = gate.enterConsume("consume 1", first);
+        try {
+            gate.enterConsume("consume 2", Arrays.asList("c", "b"));
+            fail();
+        } catch (BillingHelper.BillingAsyncInProgressException expected) {
+        }
+        // The refused consume released "c" and its share of the gate.
+        Object other = gate.enterConsume("consume 3", Collections.singletonList("c"));
+        gate.exitConsume(other, Collections.singletonList("c"));
+
+        gate.exitConsume(ticket, first);
+        Object again = gate.enterConsume("consume 4", Arrays.asList("c", "b"));
+        gate.exitConsume(again, Arrays.asList("c", "b"));
+        gate.enterExclusive("purchase");
+        gate.exitExclusive();
+    }
+
+    @Test
+    public void close_refusesWhileBusy() throws Exception {
+        gate.enterShared("query");
+        assertFalse(gate.close());
+        assertFalse(gate.isClosed());
+        gate.exitShared();
+
+        gate.enterExclusive("purchase");
+        assertFalse(gate.close());
+        gate.exitExclusive();
+
+        assertTrue(gate.close());
+        assertTrue(gate.close());
+        assertTrue(gate.isClosed());
+    }
+
+    @Test
+    public void close_refusesEveryOperationAfterwards() throws Exception {
+        assertTrue(gate.close());
+        try {
+            gate.enterShared("query");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            gate.enterExclusive("purchase");
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            gate.enterConsume("consume", Collections.singletonList("token"));
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals("disposed", gate.describe());
+    }
+
+    private void assertRefusedShared(String operation) {
+        try {
+            gate.enterShared(operation);
+            fail(operation + " was admitted");
+        } catch (BillingHelper.BillingAsyncInProgressException expected) {
+        }
+    }
+
+    private void assertRefusedExclusive(String operation) {
+        try {
+            gate.enterExclusive(operation);
+            fail(operation + " was admitted");
+        } catch (BillingHelper.BillingAsyncInProgressException expected) {
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.aistech.billing.utils;
+
+import com.github.aistech.billing.model.BillingPurchase;
+import com.github.aistech.billing.model.BillingResult;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link BatchConsumer}, on the JVM.
+ */
+public class BatchConsumerTest {
+
+    private final BillingExecutor executor = new BillingExecutor(4, "BatchConsumerTest",
+            new BillingExecutor.ImmediateDispatcher());
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void consume_returnsResultsInPurchaseOrder() throws Exception {
+        final List<BillingPurchase> purchases = purchases(12);
+        final List<BillingResult> expected = new ArrayList<BillingResult>();
+        for (BillingPurchase purchase : purchases) {
+            expected.add(new BillingResult(BillingHelper.BILLING_RESPONSE_RESULT_OK, purchase.getSku()));
+        }
+        // Earlier purchases take longer, so they finish out of order.
+        BatchConsumer consumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                int index = purchases.indexOf(purchase);
+                sleep(2 * (purchases.size() - index));
+                return expected.get(index);
+            }
+        }, executor, null);
+
+        final AtomicReferenceArray<BillingResult> notified = new AtomicReferenceArray<BillingResult>(purchases.size());
+        final AtomicInteger notifications = new AtomicInteger();
+        List<BillingResult> results = consumer.consume(purchases, new BatchConsumer.ItemCallback() {
+            @Override
+            public void onItemConsumed(int index, BillingResult result) {
+                notified.set(index, result);
+                notifications.incrementAndGet();
+            }
+        });
+
+        assertEquals(purchases.size(), results.size());
+        assertEquals(purchases.size(), notifications.get());
+        for (int i = 0; i < purchases.size(); i++) {
+            assertSame(expected.get(i), results.get(i));
+            assertSame(expected.get(i), notified.get(i));
+        }
+    }
+
+    @Test
+    public void consume_keepsGoingAfterFailedItem() throws Exception {
+        BatchConsumer consumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                int response = "sku1".equals(purchase.getSku()) ? BillingHelper.BILLING_RESPONSE_RESULT_ERROR
+                        : BillingHelper.BILLING_RESPONSE_RESULT_OK;
+                return new BillingResult(response, purchase.getSku());
+            }
+        }, executor, null);
+
+        List<BillingResult> results = consumer.consume(purchases(3), null);
+
+        assertTrue(results.get(0).isSuccess());
+        assertTrue(results.get(1).isFailure());
+        assertTrue(results.get(2).isSuccess());
+    }
+
+    @Test
+    public void consume_boundsConcurrentCalls() throws Exception {
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger maxRunning = new AtomicInteger();
+        BatchConsumer consumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                int now = running.incrementAndGet();
+                while (true) {
+                    int max = maxRunning.get();
+                    if (now <= max || maxRunning.compareAndSet(max, now)) break;
+                }
+                sleep(5);
+                running.decrementAndGet();
+                return new BillingResult(BillingHelper.BILLING_RESPONSE_RESULT_OK, purchase.getSku());
+            }
+        }, executor, null);
+        consumer.setMaxConcurrent(2);
+
+        assertEquals(10, consumer.consume(purchases(10), null).size());
+        assertTrue(maxRunning.get() <= 2);
+    }
+
+    @Test
+    public void consume_runsOnCallingThreadOnceExecutorIsShutDown() throws Exception {
+        executor.shutdown();
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger otherThreads = new AtomicInteger();
+        BatchConsumer consumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                if (Thread.currentThread() != caller) otherThreads.incrementAndGet();
+                return new BillingResult(BillingHelper.BILLING_RESPONSE_RESULT_OK, purchase.getSku());
+            }
+        }, executor, null);
+
+        assertEquals(5, consumer.consume(purchases(5), null).size());
+        assertEquals(0, otherThreads.get());
+    }
+
+    @Test
+    public void consume_rethrowsRuntimeExceptions() throws Exception {
+        BatchConsumer consumer = new BatchConsumer(new BatchConsumer.PurchaseConsumer() {
+            @Override
+            public BillingResult consume(BillingPurchase purchase) {
+                if ("sku2".equals(purchase.getSku())) throw new IllegalStateException("disposed");
+                return new BillingResult(BillingHelper.BILLING_RESPONSE_RESULT_OK, purchase.getSku());
+            }
+        }, executor, null);
+
+        try {
+            consumer.consume(purchases(4), null);
+            fail();
+        } catch (IllegalStateException expected) {
+            assertEquals("disposed", expected.getMessage());
+        }
+    }
+
+    private static List<BillingPurchase> purchases(int count) throws Exception {
+        List<BillingPurchase> purchases = new ArrayList<BillingPurchase>();
+        for (int i = 0; i < count; i++) {
+            purchases.add(new BillingPurchase(BillingHelper.ITEM_TYPE_INAPP,
+                    "{\"productId\":\"sku" + i + "\",\"purchaseToken\":\"token" + i + "\"}", "sig"));
+        }
+        return purchases;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.github.aistech.billing.utils;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link InventoryQueryCoalescer}, on the JVM.
+ */
+public class InventoryQueryCoalescerTest {
+
+    private final InventoryQueryCoalescer queries = new InventoryQueryCoalescer();
+
+    @Test
+    public void firstRequest_startsQuery() {
+        assertTrue(queries.request(true, Collections.singletonList("a")));
+        InventoryQueryCoalescer.Request request = queries.takePending();
+        assertTrue(request.mQueryProducts);
+        assertEquals(Collections.singletonList("a"), request.mSkus);
+        assertFalse(queries.finish(true));
+    }
+
+    @Test
+    public void requestsInFlight_shareOneFollowUp() {
+        assertTrue(queries.request(false, null));
+        queries.takePending();
+
+        // Callers arriving while the query is in flight don't start queries of their own.
+        assertFalse(queries.request(false, null));
+        assertFalse(queries.request(true, Arrays.asList("a", "b")));
+        assertFalse(queries.request(false, Arrays.asList("b", "c")));
+
+        assertTrue(queries.finish(true));
+        InventoryQueryCoalescer.Request followUp = queries.takePending();
+        assertTrue(followUp.mQueryProducts);
+        assertEquals(Arrays.asList("a", "b", "c"), followUp.mSkus);
+
+        // The follow-up is the only one: once it ends, nothing is left to start.
+        assertFalse(queries.finish(true));
+        assertTrue(queries.request(false, null));
+    }
+
+    @Test
+    public void takePending_clearsRequests() {
+        assertTrue(queries.request(true, Collections.singletonList("a")));
+        queries.takePending();
+        assertFalse(queries.request(false, null));
+        assertTrue(queries.finish(true));
+
+        InventoryQueryCoalescer.Request followUp = queries.takePending();
+        assertFalse(followUp.mQueryProducts);
+        assertNull(followUp.mSkus);
+    }
+
+    @Test
+    public void finish_dropsFollowUpWhenNotAllowed() {
+        assertTrue(queries.request(false, null));
+        queries.takePending();
+        assertFalse(queries.request(false, null));
+
+        assertFalse(queries.finish(false));
+        // The dropped follow-up doesn't linger for the next query.
+        assertTrue(queries.request(false, null));
+        queries.takePending();
+        assertFalse(queries.finish(true));
+    }
+
+    @Test
+    public void startIfIdle_isRefusedWhileInFlight() {
+        assertTrue(queries.startIfIdle());
+        assertFalse(queries.startIfIdle());
+        assertFalse(queries.request(false, null));
+        assertTrue(queries.finish(true));
+        queries.takePending();
+        assertFalse(queries.startIfIdle());
+        assertFalse(queries.finish(true));
+        assertTrue(queries.startIfIdle());
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.aistech.billing.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests of {@link VerifiedPurchaseCache}, on the JVM.
+ */
+public class VerifiedPurchaseCacheTest {
+
+    private static final byte[] KEY = {1, 2, 3, 4};
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        VerifiedPurchaseCache cache = new VerifiedPurchaseCache(2);
+        VerifiedPurchaseCache.Digest a = digest(cache, "a");
+        VerifiedPurchaseCache.Digest b = digest(cache, "b");
+        VerifiedPurchaseCache.Digest c = digest(cache, "c");
+        cache.put(a);
+        cache.put(b);
+        // Using "a" makes "b" the least recently used.
+        assertTrue(cache.contains(a));
+        cache.put(c);
+
+        assertEquals(2, cache.size());
+        assertTrue(cache.contains(a));
+        assertFalse(cache.contains(b));
+        assertTrue(cache.contains(c));
+    }
+
+    @Test
+    public void countsHitsAndMisses() {
+        VerifiedPurchaseCache cache = new VerifiedPurchaseCache();
+        VerifiedPurchaseCache.Digest a = digest(cache, "a");
+        assertFalse(cache.contains(a));
+        cache.put(a);
+        assertTrue(cache.contains(a));
+        assertTrue(cache.contains(digest(cache, "a")));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void digest_coversKeyDataAndSignature() {
+        VerifiedPurchaseCache cache = new VerifiedPurchaseCache();
+        cache.put(cache.digest(KEY, "data", "sig"));
+        assertTrue(cache.contains(cache.digest(KEY, "data", "sig")));
+        assertFalse(cache.contains(cache.digest(new byte[]{9}, "data", "sig")));
+        assertFalse(cache.contains(cache.digest(KEY, "dat", "asig")));
+        assertFalse(cache.contains(cache.digest(KEY, "data", "other")));
+    }
+
+    @Test
+    public void defaultSize_holdsFullInventory() {
+        VerifiedPurchaseCache cache = new VerifiedPurchaseCache();
+        assertEquals(VerifiedPurchaseCache.DEFAULT_MAX_SIZE, cache.getMaxSize());
+        for (int i = 0; i < 1000; i++) {
+            cache.put(digest(cache, "purchase " + i));
+        }
+        assertEquals(1000, cache.size());
+        assertTrue(cache.contains(digest(cache, "purchase 0")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsEmptyCache() {
+        new VerifiedPurchaseCache(0);
+    }
+
+    private static VerifiedPurchaseCache.Digest digest(VerifiedPurchaseCache cache, String data) {
+        return cache.digest(KEY, data, "signature");
+    }
+}